@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteFullException;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+
+/**
+ * Tests the import of a file of notes, which one thread parses while another stages the
+ * notes in the provider. The tests slow down or fail the staging to check how the two threads
+ * hand the notes over, and that a failed or cancelled import leaves no notes behind.
+ */
+public class ImportManagerTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The number of notes in the imported file
+    private static final int NOTE_COUNT = 100;
+
+    // The number of notes the import stages in each batch
+    private static final int BATCH_SIZE = 10;
+
+    // The longest an import or a wait for one of its threads may take
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private MockContentResolver mMockResolver;
+    private SQLiteDatabase mDb;
+    private File mFile;
+
+    public ImportManagerTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+        mFile = writeFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /*
+     * Tests that the parser stops when the queue is full while the writer is busy, and goes on
+     * when the writer takes the next batch.
+     */
+    public void testBackpressure() throws InterruptedException {
+        BlockingDataSource dataSource = new BlockingDataSource();
+        ImportManager manager = newImportManager(dataSource);
+        Result result = new Result();
+        manager.importNotes(mFile, result);
+        assertTrue(dataSource.staging.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The writer holds the first batch, the queue fills up, and the parser waits
+        awaitFullQueue(manager);
+        SystemClock.sleep(200);
+        assertEquals(ImportManager.QUEUE_CAPACITY, manager.getQueuedBatchCountForTest());
+        assertEquals(0, dataSource.staged.get());
+        assertEquals(1, result.done.getCount());
+
+        dataSource.release.countDown();
+        result.await();
+        assertNull(result.error);
+        assertEquals(NOTE_COUNT, result.importedCount);
+        assertEquals(NOTE_COUNT / BATCH_SIZE, dataSource.staged.get());
+        assertEquals(NOTE_COUNT, countNotes());
+        assertEquals(0, countStagedNotes());
+    }
+
+    /*
+     * Tests that an import cancelled while the parser waits for the writer stops, and that
+     * the notes staged so far are discarded.
+     */
+    public void testCancelWhileParserWaits() throws InterruptedException {
+        BlockingDataSource dataSource = new BlockingDataSource();
+        ImportManager manager = newImportManager(dataSource);
+        Result result = new Result();
+        manager.importNotes(mFile, result);
+        assertTrue(dataSource.staging.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        awaitFullQueue(manager);
+
+        manager.cancelImport();
+        dataSource.release.countDown();
+        result.await();
+        assertNotNull(result.error);
+        assertTrue(dataSource.staged.get() < NOTE_COUNT / BATCH_SIZE);
+        assertEquals(0, countNotes());
+        assertEquals(0, countStagedNotes());
+    }
+
+    /*
+     * Tests that a writer that fails in the middle of an import fails the import with its
+     * error, and that the notes it staged before are discarded.
+     */
+    public void testWriterFailure() throws InterruptedException {
+        final SQLiteFullException failure = new SQLiteFullException("database or disk is full");
+        ImportManager manager = newImportManager(new NoteDataSource(mMockResolver) {
+            private int mBatches;
+
+            @Override
+            public void stageImport(long importId, List<Note> notes) {
+                if (++mBatches == 3) {
+                    throw failure;
+                }
+                super.stageImport(importId, notes);
+            }
+        });
+        Result result = new Result();
+        manager.importNotes(mFile, result);
+        result.await();
+        assertSame(failure, result.error);
+        assertEquals(0, countNotes());
+        assertEquals(0, countStagedNotes());
+    }
+
+    /*
+     * Tests that an import whose merge fails returns the error, and discards the notes it
+     * staged.
+     */
+    public void testDiscardStagedNotes() throws InterruptedException {
+        final SQLiteFullException failure = new SQLiteFullException("database or disk is full");
+        final AtomicInteger staged = new AtomicInteger();
+        ImportManager manager = newImportManager(new NoteDataSource(mMockResolver) {
+            @Override
+            public void stageImport(long importId, List<Note> notes) {
+                super.stageImport(importId, notes);
+                staged.addAndGet(notes.size());
+            }
+
+            @Override
+            public Bundle finishImport(long importId, boolean matchContent) {
+                throw failure;
+            }
+        });
+        Result result = new Result();
+        manager.importNotes(mFile, result);
+        result.await();
+        assertSame(failure, result.error);
+        assertEquals(NOTE_COUNT, staged.get());
+        assertEquals(0, countNotes());
+        assertEquals(0, countStagedNotes());
+    }
+
+    // Returns an import manager that stages the notes through the given data source.
+    private ImportManager newImportManager(NoteDataSource dataSource) {
+        ImportManager manager = new ImportManager(mMockResolver);
+        manager.setBatchSize(BATCH_SIZE);
+        manager.setDataSourceForTest(dataSource);
+        return manager;
+    }
+
+    // Waits until the import's queue is full.
+    private void awaitFullQueue(ImportManager manager) {
+        long deadline = SystemClock.uptimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (manager.getQueuedBatchCountForTest() < ImportManager.QUEUE_CAPACITY) {
+            assertTrue("the queue did not fill up", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    // Writes a file of notes in the format of an export.
+    private File writeFile() throws IOException, JSONException {
+        List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes.add(new Note(0, "Imported" + i, "This is imported note " + i, 0, 0));
+        }
+        File file = new File(getContext().getCacheDir(), "ImportManagerTest.json");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(JsonSerializer.serializeNotes(notes, System.currentTimeMillis()));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private long countNotes() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME);
+    }
+
+    private long countStagedNotes() {
+        return DatabaseUtils.queryNumEntries(mDb, NoteImports.TABLE_NAME);
+    }
+
+    /**
+     * A data source whose first staged batch waits until the test releases it.
+     */
+    private class BlockingDataSource extends NoteDataSource {
+        final CountDownLatch staging = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger staged = new AtomicInteger();
+
+        BlockingDataSource() {
+            super(mMockResolver);
+        }
+
+        @Override
+        public void stageImport(long importId, List<Note> notes) {
+            staging.countDown();
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.stageImport(importId, notes);
+            staged.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the outcome of an import.
+     */
+    private static class Result implements ImportManager.ImportCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int importedCount = -1;
+        volatile Exception error;
+
+        @Override
+        public void onSuccess(int importedCount) {
+            this.importedCount = importedCount;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public void onProgress(int progress) {
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("the import did not finish", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+}
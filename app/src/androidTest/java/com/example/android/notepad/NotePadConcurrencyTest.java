@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests that queries of the notes list are not blocked by a writer. The provider's database
+ * uses write-ahead logging, so a reader sees the last committed state of the notes while a
+ * write transaction is still open.
+ */
+public class NotePadConcurrencyTest extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadConcurrencyTest";
+
+    // The number of notes the import inserts
+    private static final int IMPORT_SIZE = 10000;
+
+    // The number of notes the import commits in each transaction
+    private static final int BATCH_SIZE = 500;
+
+    // The number of times a note is copied while it is being rewritten
+    private static final int COPY_COUNT = 50;
+
+    // The longest a list query may take while the writer holds its transaction
+    private static final long READ_TIMEOUT_SECONDS = 5;
+
+    // The columns the notes list reads
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_STATUS,
+        NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+    };
+
+    private MockContentResolver mMockResolver;
+    private SQLiteDatabase mDb;
+
+    public NotePadConcurrencyTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Tests that the database is opened in write-ahead logging mode.
+     */
+    public void testJournalMode() {
+        Cursor cursor = mDb.rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the durability and checkpoint policy of the connection that commits the writes.
+     * Before API 29 the synchronous mode is set with a PRAGMA that the framework may undo, so
+     * it is only checked from API 29.
+     */
+    public void testPrimaryConnectionPolicy() {
+        mDb.beginTransactionNonExclusive();
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // 1 is NORMAL
+                assertEquals(1, pragma("synchronous"));
+            }
+            assertEquals(NotePadProvider.DatabaseHelper.DEFAULT_WAL_AUTOCHECKPOINT,
+                    pragma("wal_autocheckpoint"));
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Returns the value of a PRAGMA, read on the connection of the current thread.
+    private long pragma(String name) {
+        Cursor cursor = mDb.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that a list query completes while another thread holds an open write transaction,
+     * and that it does not see the uncommitted notes.
+     */
+    public void testReadDuringWriteTransaction() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                mDb.beginTransactionNonExclusive();
+                try {
+                    insertNotes(0, BATCH_SIZE);
+                    written.countDown();
+
+                    // Holds the transaction open until the reader is done
+                    read.await(READ_TIMEOUT_SECONDS * 2, TimeUnit.SECONDS);
+                    mDb.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mDb.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        assertTrue(written.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final int[] count = new int[] { -1 };
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                count[0] = queryList();
+                read.countDown();
+            }
+        };
+        reader.start();
+
+        // A reader that waited on the writer would not finish before the writer gives up
+        assertTrue("list query blocked by the writer",
+                read.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, count[0]);
+
+        writer.join();
+        reader.join();
+        assertEquals(BATCH_SIZE, queryList());
+    }
+
+    /*
+     * Runs an import of 10,000 notes in batches on a background thread, and queries the notes
+     * list on this thread until the import is done. Each query must see whole batches only, and
+     * the list must keep loading throughout the import.
+     */
+    public void testListQueriesDuringImport() throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread importer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int start = 0; start < IMPORT_SIZE; start += BATCH_SIZE) {
+                        mDb.beginTransactionNonExclusive();
+                        try {
+                            insertNotes(start, BATCH_SIZE);
+                            mDb.setTransactionSuccessful();
+                        } finally {
+                            mDb.endTransaction();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+
+        int queries = 0;
+        long maxNanos = 0;
+        int lastCount = 0;
+        importer.start();
+        while (importer.isAlive()) {
+            long start = System.nanoTime();
+            int count = queryList();
+            maxNanos = Math.max(maxNanos, System.nanoTime() - start);
+            queries++;
+
+            assertEquals("saw a partial batch", 0, count % BATCH_SIZE);
+            assertTrue("the list went backwards", count >= lastCount);
+            lastCount = count;
+        }
+        importer.join();
+
+        assertNull(failure[0]);
+        assertEquals(IMPORT_SIZE, queryList());
+        assertTrue("no list query ran during the import", queries > 1);
+        Log.i(TAG, String.format("%d list queries during the import, slowest %.2f ms",
+                queries, maxNanos / 1e6));
+    }
+
+    /*
+     * Copies a note of several chunks on this thread while another thread keeps replacing its
+     * text with one of two texts. Each copy must be one of the two texts, never a mix of them.
+     */
+    public void testCopyDuringRewrites() throws Exception {
+        final String[] texts = {
+            repeat('a', NotePad.Notes.NOTE_CHUNK_LENGTH * 3 + 1),
+            repeat('b', NotePad.Notes.NOTE_CHUNK_LENGTH * 2 + 7)
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[0]);
+        final Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final Throwable[] failure = new Throwable[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; !done.get(); i++) {
+                        ContentValues values = new ContentValues();
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[i % 2]);
+                        mMockResolver.update(noteUri, values, null, null);
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < COPY_COUNT; i++) {
+                StringWriter out = new StringWriter();
+                assertTrue(NoteBodies.copy(mDb, noteId, out));
+                String text = out.toString();
+                assertTrue("copied a mix of two texts",
+                        text.equals(texts[0]) || text.equals(texts[1]));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        assertNull(failure[0]);
+    }
+
+    /*
+     * Tests that a note of several chunks is not copied to its stream inside a transaction, so
+     * that a stream that is not being read does not hold up the writes of other threads.
+     */
+    public void testWriteDuringSlowCopy() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                repeat('a', NotePad.Notes.NOTE_CHUNK_LENGTH * 2 + 1));
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+
+        // The stream waits for a note to be inserted by another thread before it takes any text
+        final boolean[] inserted = new boolean[1];
+        StringWriter out = new StringWriter() {
+            private boolean mWaited;
+
+            @Override
+            public void write(String str) {
+                if (!mWaited) {
+                    mWaited = true;
+                    Thread writer = new Thread() {
+                        @Override
+                        public void run() {
+                            insertNotes(0, 1);
+                        }
+                    };
+                    writer.start();
+                    try {
+                        writer.join(TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    inserted[0] = !writer.isAlive();
+                }
+                super.write(str);
+            }
+        };
+        assertTrue(NoteBodies.copy(mDb, noteId, out));
+        assertTrue("a write waited for the copy of a note", inserted[0]);
+        assertEquals(NotePad.Notes.NOTE_CHUNK_LENGTH * 2 + 1, out.toString().length());
+    }
+
+    // Returns a string of the given character, repeated.
+    private static String repeat(char ch, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+
+    // Inserts notes through the provider, numbering them from the given index.
+    private void insertNotes(int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is note " + i);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+    }
+
+    // Runs the notes list query and returns the number of notes it found.
+    private int queryList() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION, null,
+                null, NotePad.Notes.DEFAULT_SORT_ORDER);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
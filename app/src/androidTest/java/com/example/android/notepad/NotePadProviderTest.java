@@ -16,24 +16,44 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
+import org.json.JSONException;
+
 /*
  */
 /**
@@ -44,6 +64,8 @@ import java.util.GregorianCalendar;
  */
 public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
+    private static final String TAG = "NotePadProviderTest";
+
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
@@ -136,9 +158,6 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      * and populated in insertData if necessary.
      */
     private void insertData() {
-        // Creates an instance of the ContentValues map type expected by database insertions
-        ContentValues values = new ContentValues();
-
         // Sets up test data
         for (int index = 0; index < TEST_NOTES.length; index++) {
 
@@ -146,13 +165,26 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
-            // Adds a record to the database.
-            mDb.insertOrThrow(
+            // Adds a record to the database. The note's text goes in the note bodies table.
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            long rowId = mDb.insertOrThrow(
                 NotePad.Notes.TABLE_NAME,             // the table name for the insert
                 NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
+                values                                // the values map to insert
             );
+
+            ContentValues bodyValues = new ContentValues();
+            bodyValues.put(NotePadProvider.NOTE_BODIES_NOTE_ID, rowId);
+            bodyValues.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+            bodyValues.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, body.length());
+            mDb.insertOrThrow(NotePadProvider.NOTE_BODIES_TABLE_NAME, null, bodyValues);
         }
+        ContentHashes.updateAll(mDb);
+
+        // The provider doesn't see writes to its database, so it is told of them
+        getProvider().dataChangedForTest();
     }
 
     /*
@@ -186,9 +218,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. The notes can be streamed as JSON or as plain text.
+        String[] notesTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(notesTypes);
+        assertEquals(2, notesTypes.length);
+        assertEquals(NotePad.Notes.STREAM_TYPE_JSON, notesTypes[0]);
+        assertEquals(MIME_TYPE_TEXT, notesTypes[1]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -219,11 +255,12 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes table URI with a filter that selects only plain text.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
-        assertNull(mimeType);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT);
+        assertNotNull(mimeType);
+        assertEquals(1, mimeType.length);
+        assertEquals(MIME_TYPE_TEXT, mimeType[0]);
 
     }
 
@@ -280,13 +317,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         testAssetDescriptor.close();
 
         /*
-         * Changes the URI to a notes URI for multiple notes, and re-test. This should fail, since
-         * the provider does not support this type of URI. A FileNotFound exception is expected,
-         * so call fail() if it does *not* occur.
+         * Changes the URI to the live folder URI, and re-test. This should fail, since the
+         * provider does not support streams for this type of URI. A FileNotFound exception is
+         * expected, so call fail() if it does *not* occur.
          */
         try {
             testAssetDescriptor = mMockResolver.openTypedAssetFileDescriptor(
-                    NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.LIVE_FOLDER_URI,
                     MIME_TYPE_TEXT,
                     null
             );
@@ -790,6 +827,1356 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests bulk inserts of notes and categories. A bulk insert either inserts all of its rows
+     * or none of them.
+     */
+    public void testBulkInsert() {
+        ContentValues[] notes = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            notes[index] = TEST_NOTES[index].getContentValues();
+        }
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        // The inserted notes get the provider's defaults and are indexed for search.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_STATUS + " = " + NotePad.Notes.STATUS_PENDING, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        assertEquals(1, mMockResolver.query(searchUri("note7"), null, null, null, null).getCount());
+
+        ContentValues[] categories = new ContentValues[2];
+        categories[0] = new ContentValues();
+        categories[0].put(NotePad.Categories.COLUMN_NAME_NAME, "Work");
+        categories[1] = new ContentValues();
+        categories[1].put(NotePad.Categories.COLUMN_NAME_NAME, "Home");
+        assertEquals(2, mMockResolver.bulkInsert(NotePad.Categories.CONTENT_URI, categories));
+
+        // A row with an unknown column fails the whole insert.
+        ContentValues bad = new ContentValues();
+        bad.put("no_such_column", "value");
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, new ContentValues[] {
+                    TEST_NOTES[0].getContentValues(), bad });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Bulk inserts are only allowed on the tables.
+        try {
+            mMockResolver.bulkInsert(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1),
+                    notes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing
+        }
+    }
+
+    /*
+     * Tests batches of operations. A batch either applies all of its operations or none of them.
+     */
+    public void testApplyBatch() throws OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[0].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[1].getContentValues())
+                .build());
+
+        // Renames the first note, which is found by the ID the first insert returned.
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed")
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+        assertEquals(3, results.length);
+        assertEquals(Integer.valueOf(1), results[2].count);
+        assertEquals(1, mMockResolver.query(searchUri("renamed"), null, null, null, null).getCount());
+
+        // A failed operation rolls back the operations before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Missing")
+                .withExpectedCount(1)
+                .build());
+        try {
+            getProvider().applyBatch(operations);
+            fail();
+        } catch (OperationApplicationException e) {
+            // succeeded, so do nothing
+        }
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+    }
+
+    /*
+     * Tests the categories with counts URI, which counts the notes of every category in one
+     * query.
+     */
+    public void testCategoriesWithCounts() {
+        long[] categoryIds = new long[3];
+        for (int index = 0; index < categoryIds.length; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, "Category" + index);
+            values.put(NotePad.Categories.COLUMN_NAME_MODIFIED_TIME, START_DATE + index);
+            categoryIds[index] = ContentUris.parseId(
+                    mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        }
+
+        // Files note i in category i % 2, so the last category stays empty, and leaves two
+        // notes without a category.
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            if (index >= 2) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryIds[index % 2]);
+            }
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        assertEquals(NotePad.Categories.CONTENT_TYPE,
+                mMockResolver.getType(NotePad.Categories.CONTENT_WITH_COUNTS_URI));
+
+        // The categories come in the default order, most recently modified first.
+        String[] projection = {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_WITH_COUNTS_URI,
+                projection, null, null, null);
+        assertEquals(categoryIds.length, cursor.getCount());
+        int[] expectedCounts = { 0, 4, 4 };
+        for (int index = 0; index < expectedCounts.length; index++) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(categoryIds[categoryIds.length - 1 - index], cursor.getLong(0));
+            assertEquals(expectedCounts[index], cursor.getInt(2));
+        }
+        cursor.close();
+
+        // The counts are summed from the note counters in key order, without sorting them.
+        assertNoSort("SELECT " + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + ", SUM("
+                + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + ") FROM "
+                + NotePad.NoteCounters.TABLE_NAME
+                + " GROUP BY " + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID, null);
+
+        // The URI is read-only.
+        try {
+            mMockResolver.insert(NotePad.Categories.CONTENT_WITH_COUNTS_URI, new ContentValues());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing
+        }
+    }
+
+    /*
+     * Tests that the note counters follow inserts, updates and deletes of the notes.
+     */
+    public void testNoteCounters() {
+        long[] categoryIds = {
+            insertCategory("Category1"), insertCategory("Category2"), insertCategory("Category3")
+        };
+
+        // Inserts notes 0-9 in the first two categories, with every third one completed.
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                    categoryIds[index < 6 ? 0 : 1]);
+            values.put(NotePad.Notes.COLUMN_NAME_STATUS, index % 3 == 0
+                    ? NotePad.Notes.STATUS_COMPLETED : NotePad.Notes.STATUS_PENDING);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        assertNoteCounters();
+
+        // Moves notes to another category, changes their status, and deletes some.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryIds[2]);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN ('Note0', 'Note7')", null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_STATUS, NotePad.Notes.STATUS_COMPLETED);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        assertNoteCounters();
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = " + categoryIds[1], null);
+        assertNoteCounters();
+
+        // The counters of a category and status drop out when their last note is gone.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        Cursor cursor = mMockResolver.query(NotePad.NoteCounters.CONTENT_URI, null, null, null,
+                null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // Asserts that the note counters hold the counts of the notes table.
+    private void assertNoteCounters() {
+        Cursor expected = mDb.rawQuery("SELECT "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                + NotePad.Notes.COLUMN_NAME_STATUS + ", COUNT(*) FROM "
+                + NotePad.Notes.TABLE_NAME + " GROUP BY 1, 2 ORDER BY 1, 2", null);
+        Cursor counters = mMockResolver.query(NotePad.NoteCounters.CONTENT_URI,
+                new String[] {
+                    NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID,
+                    NotePad.NoteCounters.COLUMN_NAME_STATUS,
+                    NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT },
+                null, null,
+                NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + ","
+                + NotePad.NoteCounters.COLUMN_NAME_STATUS);
+        try {
+            assertEquals(expected.getCount(), counters.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(counters.moveToNext());
+                for (int column = 0; column < 3; column++) {
+                    assertEquals(expected.getLong(column), counters.getLong(column));
+                }
+            }
+        } finally {
+            expected.close();
+            counters.close();
+        }
+    }
+
+    /*
+     * Tests setting and toggling the status of a set of notes through call().
+     */
+    public void testSetStatus() {
+        insertData();
+
+        // Toggles two pending notes.
+        Bundle result = NoteDataSource.setStatus(mMockResolver, new long[] { 1, 2 }, null);
+        assertEquals(2, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(2, result.getInt(NotePad.Notes.KEY_COMPLETED_COUNT));
+
+        // Toggles a completed note and a pending one; each note gets the other status.
+        result = NoteDataSource.setStatus(mMockResolver, new long[] { 2, 3 }, null);
+        assertEquals(2, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COMPLETED_COUNT));
+        assertEquals(NotePad.Notes.STATUS_COMPLETED, queryStatus(1));
+        assertEquals(NotePad.Notes.STATUS_PENDING, queryStatus(2));
+        assertEquals(NotePad.Notes.STATUS_COMPLETED, queryStatus(3));
+        assertNoteCounters();
+
+        // Sets a status. IDs of notes that do not exist are ignored.
+        result = NoteDataSource.setStatus(mMockResolver, new long[] { 1, 2, 3, 999 },
+                NotePad.Notes.STATUS_PENDING);
+        assertEquals(3, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COMPLETED_COUNT));
+        assertEquals(NotePad.Notes.STATUS_PENDING, queryStatus(1));
+        assertNoteCounters();
+
+        try {
+            NoteDataSource.setStatus(mMockResolver, new long[] { 1 }, 5);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing
+        }
+    }
+
+    // Returns the status of a note.
+    private int queryStatus(long noteId) {
+        Cursor cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                new String[] { NotePad.Notes.COLUMN_NAME_STATUS }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests full-text searches through the notes search URI.
+     */
+    public void testSearch() {
+        // Inserts data through the provider, which indexes each note's text.
+        for (NoteInfo note : TEST_NOTES) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+
+        // Every note's content contains the word "This", matched case-insensitively.
+        Cursor cursor = mMockResolver.query(searchUri("this"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // All of the words must match, and each word matches as a prefix.
+        cursor = mMockResolver.query(searchUri("no 5"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[5].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // FTS syntax in the search text is treated as plain text.
+        cursor = mMockResolver.query(searchUri("\"note3 OR"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Text with nothing to index is looked for in the titles, and no text finds nothing.
+        ContentValues punctuation = new ContentValues();
+        punctuation.put(NotePad.Notes.COLUMN_NAME_TITLE, "!!!");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, punctuation);
+        assertEquals(1, mMockResolver.query(searchUri("!!!"), null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.query(searchUri("%"), null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.query(searchUri(" "), null, null, null, null).getCount());
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "!!!" });
+
+        // Updates re-index the row, so the old title no longer matches and the new one does.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note2" });
+        assertEquals(0, mMockResolver.query(searchUri("note2"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("renamed"), null, null, null, null).getCount());
+
+        // Chinese text is found by any substring, and a single character by itself.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "周报");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "本周完成了数据库索引的优化。");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, mMockResolver.query(searchUri("库索引"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("化"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("周 优化"), null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.query(searchUri("索库"), null, null, null, null).getCount());
+
+        // So is Chinese written next to other letters without a space.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "笔记");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "使用Java开发Android应用");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, mMockResolver.query(searchUri("使用Java"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("用Java开"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("Java开发"), null, null, null, null).getCount());
+        assertEquals(1, mMockResolver.query(searchUri("发Android应"), null, null, null, null)
+                .getCount());
+        assertEquals(1, mMockResolver.query(searchUri("使用Java开发Android应用"), null, null, null,
+                null).getCount());
+        assertEquals(0, mMockResolver.query(searchUri("使Java"), null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.query(searchUri("Java用"), null, null, null, null).getCount());
+
+        // Deleted rows drop out of the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Renamed" });
+        assertEquals(0, mMockResolver.query(searchUri("renamed"), null, null, null, null).getCount());
+    }
+
+    /*
+     * Tests that the queries of the notes list are answered in order from an index. The list
+     * filters by status and category and sorts by modification date; a query that has to sort
+     * its rows shows "USE TEMP B-TREE FOR ORDER BY" in its query plan. The SQL is built by the
+     * provider, as it is for the list's queries of each URI.
+     */
+    public void testListQueriesUseIndexes() {
+        insertData();
+
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_STATUS,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+        };
+        String[] projectionWithNames = Arrays.copyOf(projection, projection.length + 1);
+        projectionWithNames[projection.length] = NotePad.Notes.COLUMN_NAME_CATEGORY_NAME;
+        String byCategory = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+        String[] categoryArgs = { "1" };
+        Uri[] uris = {
+            NotePad.Notes.CONTENT_URI,
+            Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "todo"),
+            Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "normal")
+        };
+
+        // All notes, and the todo and normal notes, with and without a category, and with the
+        // category names joined in
+        for (Uri uri : uris) {
+            for (String[] columns : new String[][] { projection, projectionWithNames }) {
+                assertNoSort(getProvider().buildQueryForTest(uri, columns, null,
+                        NotePad.Notes.DEFAULT_SORT_ORDER), null);
+                assertNoSort(getProvider().buildQueryForTest(uri, columns, byCategory,
+                        NotePad.Notes.DEFAULT_SORT_ORDER), categoryArgs);
+            }
+        }
+
+        // A page of the notes, after the first page
+        Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "5")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, START_DATE + ",5")
+                .build();
+        assertNoSort(getProvider().buildQueryForTest(page, projection, null, null), null);
+    }
+
+    /*
+     * Tests that the notes' text is kept in the note bodies table, and that it is read, written
+     * and selected on through the notes URIs as before. Queries that do not use the text read
+     * the notes table alone.
+     */
+    public void testNoteBodies() {
+        // The notes table has no column for the text.
+        Cursor cursor = mDb.rawQuery("PRAGMA table_info(" + NotePad.Notes.TABLE_NAME + ")", null);
+        int nameIndex = cursor.getColumnIndexOrThrow("name");
+        while (cursor.moveToNext()) {
+            assertFalse(NotePad.Notes.COLUMN_NAME_NOTE.equals(cursor.getString(nameIndex)));
+        }
+        cursor.close();
+
+        for (NoteInfo note : TEST_NOTES) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+        assertEquals(TEST_NOTES.length, countBodies());
+
+        // Reads a note's text, selecting the note by its text.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+        String byText = NotePad.Notes.COLUMN_NAME_NOTE + " = ?";
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, byText,
+                new String[] { TEST_NOTES[3].note }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title, cursor.getString(0));
+        assertEquals(TEST_NOTES[3].note, cursor.getString(1));
+        cursor.close();
+
+        // Updates only the text of a note, selected by its text.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, byText,
+                new String[] { TEST_NOTES[3].note }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, byText,
+                new String[] { "Rewritten" }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title, cursor.getString(0));
+        cursor.close();
+
+        // The new text is searchable.
+        cursor = mMockResolver.query(searchUri("rewritten"), projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes the note by its text, which removes its body.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, byText,
+                new String[] { "Rewritten" }));
+        assertEquals(TEST_NOTES.length - 1, countBodies());
+
+        // The list query does not read the note bodies table.
+        String listSql = SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE }, null, null,
+                null, NotePad.Notes.DEFAULT_SORT_ORDER, null);
+        cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + listSql, null);
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            assertFalse(cursor.getString(detailIndex).contains(
+                    NotePadProvider.NOTE_BODIES_TABLE_NAME));
+        }
+        cursor.close();
+    }
+
+    // Returns the number of rows in the note bodies table.
+    private long countBodies() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePadProvider.NOTE_BODIES_TABLE_NAME);
+    }
+
+    /*
+     * Tests a note whose text is too large for a cursor window. Queries return the first chunk
+     * of the text and its length, and the whole text is read as a stream from the note's URI.
+     */
+    public void testLongNote() throws IOException {
+        // About 2MB of UTF-8, in six chunks and a few characters. Some characters are outside
+        // the Basic Multilingual Plane, and are never split between chunks.
+        int[] codePoints = { 0x7B14, 0x8BB0, 0x1F600, 'a' };
+        int length = NotePad.Notes.NOTE_CHUNK_LENGTH * 6 + 5;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.appendCodePoint(codePoints[i % codePoints.length]);
+        }
+        String text = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(6, DatabaseUtils.queryNumEntries(mDb, NoteBodies.CHUNKS_TABLE_NAME));
+
+        String[] projection = {
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH
+        };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.substring(0, text.offsetByCodePoints(0, NotePad.Notes.NOTE_CHUNK_LENGTH)),
+                cursor.getString(0));
+        assertEquals(length, cursor.getLong(1));
+        cursor.close();
+
+        assertEquals(text, readStream(noteUri));
+
+        // Replacing the text with a short one removes the chunks.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteBodies.CHUNKS_TABLE_NAME));
+        assertEquals("Short", readStream(noteUri));
+
+        // Deleting a long note removes its chunks.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(text, readStream(noteUri));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteBodies.CHUNKS_TABLE_NAME));
+        try {
+            mMockResolver.openInputStream(noteUri);
+            fail();
+        } catch (FileNotFoundException e) {
+            // succeeded, so do nothing
+        }
+    }
+
+    /*
+     * Tests writing a note's text as a stream. The text replaces the note's text when the stream
+     * is closed, and the uploaded chunks are removed.
+     */
+    public void testWriteStream() throws IOException, InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Streamed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < NotePad.Notes.NOTE_CHUNK_LENGTH * 3 + 10) {
+            builder.append("流式写入 streamed text ");
+        }
+        String text = builder.toString();
+
+        Writer out = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+        for (int start = 0; start < text.length(); start += 1000) {
+            out.write(text, start, Math.min(1000, text.length() - start));
+        }
+        out.close();
+
+        // The provider stores the text on another thread after the stream is closed
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE_LENGTH };
+        long deadline = System.currentTimeMillis() + 10000;
+        long length = 0;
+        while (length != text.length() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            length = cursor.getLong(0);
+            cursor.close();
+        }
+        assertEquals(text.length(), length);
+        assertEquals(text, readStream(noteUri));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, NoteBodies.CHUNKS_TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteBodies.UPLOADS_TABLE_NAME));
+
+        // The new text is searchable.
+        Cursor cursor = mMockResolver.query(searchUri("流式"), projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a note opened as text/plain is a file with a known length that can be read
+     * from any position, and that it follows changes to the note.
+     */
+    public void testSeekableRead() throws IOException {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+
+        String text = TEST_NOTES[0].title + "\n\n" + TEST_NOTES[0].note + "\n";
+        assertEquals(text, readFile(noteUri, 0));
+
+        // Reads from the middle of the file, and again from the file that the first open wrote.
+        int offset = TEST_NOTES[0].title.length() + 2;
+        assertEquals(TEST_NOTES[0].note + "\n", readFile(noteUri, offset));
+        assertEquals(text, readFile(noteUri, 0));
+
+        // A file that another open is still writing outlives the change of the data.
+        File temp = new File(new File(getProvider().getContext().getCacheDir(), "note_files"),
+                "tmp-writing");
+        assertTrue(temp.createNewFile());
+
+        // A changed note is written again.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Changed");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Changed\n\n" + TEST_NOTES[0].note + "\n", readFile(noteUri, 0));
+        assertTrue(temp.exists());
+        assertTrue(temp.delete());
+    }
+
+    // Opens a note as text/plain and reads it from the given byte offset.
+    private String readFile(Uri noteUri, long offset) throws IOException {
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            assertTrue(descriptor.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH);
+            in.getChannel().position(offset);
+            byte[] bytes = new byte[(int) (descriptor.getLength() - offset)];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                assertTrue(count > 0);
+                read += count;
+            }
+            assertEquals(-1, in.read());
+            return new String(bytes, "UTF-8");
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /*
+     * Tests streaming all of the notes, more than one page of them, as JSON in the format of
+     * the export file, and a search of them as plain text.
+     */
+    public void testNotesStream() throws IOException, JSONException {
+        int count = 250;
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Line \"" + i + "\"\n\\\t笔记");
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i % 7);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        String json = readTypedStream(NotePad.Notes.CONTENT_URI, NotePad.Notes.STREAM_TYPE_JSON);
+        JsonSerializer.NotesData data = JsonSerializer.deserializeNotes(json);
+        assertEquals(JsonSerializer.CURRENT_VERSION, data.getVersion());
+        Note[] notes = data.getNotes();
+        assertEquals(count, notes.length);
+        assertTrue(json.endsWith("],\"" + JsonSerializer.NOTE_COUNT_KEY + "\":" + count + "}"));
+        boolean[] seen = new boolean[count];
+        for (Note note : notes) {
+            int i = Integer.parseInt(note.getTitle().substring("Note ".length()));
+            assertFalse(seen[i]);
+            seen[i] = true;
+            assertEquals("Line \"" + i + "\"\n\\\t笔记", note.getContent());
+            assertEquals(START_DATE + i % 7, note.getModifyTime());
+        }
+
+        // The streaming reader reads the same notes, one at a time.
+        JsonSerializer.NoteReader reader = new JsonSerializer.NoteReader(new StringReader(json));
+        try {
+            for (Note expected : notes) {
+                Note note = reader.next();
+                assertNotNull(note);
+                assertEquals(expected.getId(), note.getId());
+                assertEquals(expected.getTitle(), note.getTitle());
+                assertEquals(expected.getContent(), note.getContent());
+                assertEquals(expected.getModifyTime(), note.getModifyTime());
+            }
+            assertNull(reader.next());
+            assertEquals(JsonSerializer.CURRENT_VERSION, reader.getVersion());
+        } finally {
+            reader.close();
+        }
+
+        // Fields after the notes, and unknown fields, are read or skipped.
+        reader = new JsonSerializer.NoteReader(new StringReader(
+                "{\"notes\":[{\"title\":\"A\",\"tags\":[1]}],\"extra\":{},\"version\":\"2\"}"));
+        try {
+            assertEquals("A", reader.next().getTitle());
+            assertNull(reader.next());
+            assertEquals("2", reader.getVersion());
+        } finally {
+            reader.close();
+        }
+
+        // A search streams only the notes it finds.
+        assertEquals("Note 42\n\nLine \"42\"\n\\\t笔记\n\n",
+                readTypedStream(searchUri("Note 42"), MIME_TYPE_TEXT));
+
+        // A note without a title is streamed as plain text with an empty one
+        ContentValues values = new ContentValues();
+        values.putNull(NotePad.Notes.COLUMN_NAME_TITLE);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Untitled zebra");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("\n\nUntitled zebra\n\n", readTypedStream(searchUri("zebra"), MIME_TYPE_TEXT));
+    }
+
+    /*
+     * Tests that notes edited while the notes are streamed, after the first page was read,
+     * are still streamed once, though their new modification dates move them to the top of
+     * the notes list.
+     */
+    public void testNotesStreamWithEdits() throws IOException, JSONException {
+        int count = NotePadProvider.NOTES_STREAM_PAGE_SIZE + 50;
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Content " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        // Edits every note when the first note is written, which is after the first page is read
+        final ContentValues edit = new ContentValues();
+        edit.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + count);
+        StringWriter out = new StringWriter() {
+            private boolean mEdited;
+
+            @Override
+            public void write(String str) {
+                if (!mEdited && str.startsWith("\"" + JsonSerializer.ID_KEY + "\"")) {
+                    mEdited = true;
+                    assertEquals(count, mMockResolver.update(NotePad.Notes.CONTENT_URI, edit,
+                            null, null));
+                }
+                super.write(str);
+            }
+        };
+        getProvider().writeNotesForTest(out, NotePad.Notes.CONTENT_URI);
+
+        Note[] notes = JsonSerializer.deserializeNotes(out.toString()).getNotes();
+        assertEquals(count, notes.length);
+        boolean[] seen = new boolean[count];
+        for (Note note : notes) {
+            int i = Integer.parseInt(note.getTitle().substring("Note ".length()));
+            assertFalse(seen[i]);
+            seen[i] = true;
+            assertEquals("Content " + i, note.getContent());
+        }
+    }
+
+    /*
+     * Tests that a batch query returns the same rows as the separate queries, in the order
+     * the queries were added, and compares the time of the two.
+     */
+    public void testBatchQuery() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        String[] noteProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        String[] countProjection = { NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT };
+
+        BatchQuery batch = new BatchQuery();
+        assertEquals(0, batch.add(noteUri, noteProjection, null, null, null));
+        assertEquals(1, batch.add(NotePad.Notes.CONTENT_URI, noteProjection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?", new String[] { "Note%" },
+                NotePad.Notes.DEFAULT_SORT_ORDER));
+        assertEquals(2, batch.add(NotePad.NoteCounters.CONTENT_URI, countProjection, null, null,
+                null));
+
+        Cursor[] results = batch.run(mMockResolver);
+        assertEquals(3, results.length);
+        assertSameRows(mMockResolver.query(noteUri, noteProjection, null, null, null),
+                results[0]);
+        assertSameRows(mMockResolver.query(NotePad.Notes.CONTENT_URI, noteProjection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?", new String[] { "Note%" },
+                NotePad.Notes.DEFAULT_SORT_ORDER), results[1]);
+        assertSameRows(mMockResolver.query(NotePad.NoteCounters.CONTENT_URI, countProjection,
+                null, null, null), results[2]);
+
+        // An unknown URI fails the whole batch.
+        batch.add(INVALID_URI, null, null, null, null);
+        try {
+            batch.run(mMockResolver);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing
+        }
+
+        // Loads the editor's note and categories both ways. With the mock resolver, the time
+        // saved is the per-call overhead in the provider; across processes each call is also a
+        // Binder transaction.
+        int rounds = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            mMockResolver.query(noteUri, noteProjection, null, null, null).close();
+            mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null).close();
+        }
+        long separateNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            BatchQuery load = new BatchQuery();
+            load.add(noteUri, noteProjection, null, null, null);
+            CategoryDataSource.addAllCategoriesQuery(load);
+            for (Cursor cursor : load.run(mMockResolver)) {
+                cursor.close();
+            }
+        }
+        long batchNanos = System.nanoTime() - start;
+        Log.i(TAG, String.format("Editor load: %.3f ms in separate queries, %.3f ms batched",
+                separateNanos / 1e6 / rounds, batchNanos / 1e6 / rounds));
+    }
+
+    // Asserts that two cursors have the same columns and rows, and closes them.
+    private static void assertSameRows(Cursor expected, Cursor actual) {
+        try {
+            assertEquals(Arrays.asList(expected.getColumnNames()),
+                    Arrays.asList(actual.getColumnNames()));
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int i = 0; i < expected.getColumnCount(); i++) {
+                    assertEquals(expected.getString(i), actual.getString(i));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    // Opens a URI as a stream of the given MIME type and reads all of it.
+    private String readTypedStream(Uri uri, String mimeType) throws IOException {
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(uri, mimeType, null);
+        Reader reader = new InputStreamReader(descriptor.createInputStream(), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Reads the whole text of a note from its URI.
+    private String readStream(Uri noteUri) throws IOException {
+        Reader reader = new InputStreamReader(mMockResolver.openInputStream(noteUri), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Tests that notes queries return the name of each note's category when it is requested.
+     */
+    public void testCategoryNames() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Work");
+        long workId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Filed");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, workId);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Unfiled");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String[] projection = {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.COLUMN_NAME_TITLE);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Filed", cursor.getString(0));
+        assertEquals("Work", cursor.getString(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals("Unfiled", cursor.getString(0));
+        assertTrue(cursor.isNull(1));
+        cursor.close();
+
+        // The name also comes with filters and searches.
+        cursor = mMockResolver.query(searchUri("filed"), projection,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(workId) }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Work", cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests that deleting a category takes its notes out of it, or moves them to another
+     * category, in the same transaction, and keeps the note counters right.
+     */
+    public void testDeleteCategory() {
+        long workId = insertCategory("Work");
+        long homeId = insertCategory("Home");
+        long otherId = insertCategory("Other");
+        for (int i = 0; i < 6; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, i < 3 ? workId : homeId);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        // Deleting a category leaves its notes without a category.
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, workId),
+                null, null));
+        assertEquals(3, countNotesInCategory(0));
+        assertEquals(0, countNotesInCategory(workId));
+        assertNoteCounters();
+
+        // The notes of a category can be moved to another one instead.
+        Uri uri = NotePad.Categories.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Categories.QUERY_PARAMETER_MOVE_NOTES_TO,
+                        String.valueOf(otherId))
+                .build();
+        assertEquals(1, mMockResolver.delete(uri, NotePad.Categories._ID + " = ?",
+                new String[] { String.valueOf(homeId) }));
+        assertEquals(3, countNotesInCategory(otherId));
+        assertEquals(0, countNotesInCategory(homeId));
+        assertNoteCounters();
+
+        // Notes are not moved to a category that is deleted with them.
+        uri = NotePad.Categories.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Categories.QUERY_PARAMETER_MOVE_NOTES_TO,
+                        String.valueOf(otherId))
+                .build();
+        assertEquals(1, mMockResolver.delete(uri, null, null));
+        assertEquals(6, countNotesInCategory(0));
+        assertNoteCounters();
+    }
+
+    /*
+     * Tests that a note can't be inserted in a deleted category, nor moved into one, so that
+     * no note refers to a category that does not exist.
+     */
+    public void testDeleteCategoryRejectsItsNotes() {
+        long workId = insertCategory("Work");
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, workId),
+                null, null));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Filed");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, workId);
+        try {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            fail("Inserted a note in a deleted category");
+        } catch (SQLException e) {
+            // succeeded
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, workId);
+        try {
+            mMockResolver.update(noteUri, values, null, null);
+            fail("Moved a note to a deleted category");
+        } catch (SQLException e) {
+            // succeeded
+        }
+        assertEquals(1, countNotesInCategory(0));
+        assertNoteCounters();
+    }
+
+    /*
+     * Tests that merged notifications drop the URIs whose ancestor is notified with them.
+     */
+    public void testCoalesceNotifications() {
+        Uri note1 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri note2 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        Uri category = ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, 1);
+
+        assertEquals(Arrays.asList(note1, note2, category),
+                ChangeNotifier.coalesce(Arrays.asList(note1, note2, category)));
+        assertEquals(Arrays.asList(category, NotePad.Notes.CONTENT_URI),
+                ChangeNotifier.coalesce(Arrays.asList(note1, category,
+                        NotePad.Notes.CONTENT_URI, note2)));
+        assertEquals(Arrays.asList(NotePad.CONTENT_URI),
+                ChangeNotifier.coalesce(Arrays.asList(note1, NotePad.CONTENT_URI, category)));
+    }
+
+    // Inserts a category and returns its ID.
+    private long insertCategory(String name) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+        return ContentUris.parseId(mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+    }
+
+    // Returns the number of notes in a category.
+    private long countNotesInCategory(long categoryId) {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = " + categoryId);
+    }
+
+    /*
+     * Tests that a repeated query is answered from the cache, and that a write discards the
+     * cached results.
+     */
+    public void testQueryCache() {
+        insertData();
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?";
+        String[] selectionArgs = { "Note%" };
+
+        Bundle start = getQueryCacheStats();
+        Cursor first = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, selection,
+                selectionArgs, NotePad.Notes.DEFAULT_SORT_ORDER);
+        Cursor second = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, selection,
+                selectionArgs, NotePad.Notes.DEFAULT_SORT_ORDER);
+        try {
+            assertEquals(TEST_NOTES.length, first.getCount());
+            assertSameRows(first, second);
+        } finally {
+            first.close();
+            second.close();
+        }
+        Bundle stats = getQueryCacheStats();
+        assertEquals(1, stats.getLong(NotePad.QueryCacheStats.KEY_MISSES)
+                - start.getLong(NotePad.QueryCacheStats.KEY_MISSES));
+        assertEquals(1, stats.getLong(NotePad.QueryCacheStats.KEY_HITS)
+                - start.getLong(NotePad.QueryCacheStats.KEY_HITS));
+
+        // Other selection arguments are another query
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, selection,
+                new String[] { "Note1" }, NotePad.Notes.DEFAULT_SORT_ORDER);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // Renames a note, after which the query sees the new title
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, selection,
+                selectionArgs, NotePad.Notes.DEFAULT_SORT_ORDER);
+        try {
+            assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        stats = getQueryCacheStats();
+        assertEquals(3, stats.getLong(NotePad.QueryCacheStats.KEY_MISSES)
+                - start.getLong(NotePad.QueryCacheStats.KEY_MISSES));
+        assertEquals(1, stats.getLong(NotePad.QueryCacheStats.KEY_HITS)
+                - start.getLong(NotePad.QueryCacheStats.KEY_HITS));
+        assertEquals(1, stats.getInt(NotePad.QueryCacheStats.KEY_SIZE));
+    }
+
+    /*
+     * Tests that a query made before the generation of the cached results misses the cache
+     * without discarding them.
+     */
+    public void testQueryCacheOlderGeneration() {
+        QueryCache cache = new QueryCache();
+        cache.put("key", 2, mDb.rawQuery("SELECT 1", null)).close();
+
+        assertNull(cache.get("key", 1));
+        Cursor cursor = cache.get("key", 2);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, cache.getStats().getInt(NotePad.QueryCacheStats.KEY_SIZE));
+    }
+
+    private Bundle getQueryCacheStats() {
+        return mMockResolver.call(NotePad.QueryCacheStats.CONTENT_URI,
+                NotePad.QueryCacheStats.METHOD_GET, null, null);
+    }
+
+    /*
+     * Tests an import that is staged and then merged: notes with an existing ID replace those
+     * notes, and the others are inserted with new IDs, with their contents and search index.
+     */
+    public void testImportMerge() throws IOException {
+        insertData();
+        long existingId = 1;
+        // Content in three chunks, with characters outside the Basic Multilingual Plane
+        int length = 2 * NotePad.Notes.NOTE_CHUNK_LENGTH + 5;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.appendCodePoint(i % 2 == 0 ? 0x1F600 : 'a');
+        }
+        String longContent = builder.toString();
+
+        Bundle begin = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_BEGIN_IMPORT, null, null);
+        long importId = begin.getLong(NotePad.Notes.KEY_IMPORT_ID);
+        Uri importUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_IMPORT_URI_BASE, importId);
+        ContentValues[] values = new ContentValues[3];
+        values[0] = importValues(existingId, "Replaced", longContent);
+        values[1] = importValues(1000, "Imported zebra", "New note");
+        values[2] = importValues(2000, "Imported", null);
+        assertEquals(3, mMockResolver.bulkInsert(importUri, values));
+
+        // Staged notes are not seen until they are merged
+        assertEquals(TEST_NOTES.length, DatabaseUtils.queryNumEntries(mDb,
+                NotePad.Notes.TABLE_NAME));
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_FINISH_IMPORT, String.valueOf(importId), null);
+        assertEquals(3, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_UPDATED_COUNT));
+        assertEquals(TEST_NOTES.length + 2, DatabaseUtils.queryNumEntries(mDb,
+                NotePad.Notes.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteImports.TABLE_NAME));
+        assertNoteCounters();
+
+        Uri existingUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, existingId);
+        Cursor cursor = mMockResolver.query(existingUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_NOTE_LENGTH }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Replaced", cursor.getString(0));
+            assertEquals(length, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, NoteBodies.CHUNKS_TABLE_NAME));
+        assertEquals(longContent, readStream(existingUri));
+
+        // The new note gets a new ID, and can be found by search
+        cursor = mMockResolver.query(searchUri("zebra"),
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE }, null, null,
+                null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.getLong(0) > TEST_NOTES.length);
+            assertEquals("New note", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Staged notes that are discarded are never merged
+        importId = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_BEGIN_IMPORT, null, null)
+                .getLong(NotePad.Notes.KEY_IMPORT_ID);
+        importUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_IMPORT_URI_BASE, importId);
+        mMockResolver.bulkInsert(importUri,
+                new ContentValues[] { importValues(existingId, "Discarded", "") });
+        assertEquals(1, mMockResolver.delete(importUri, null, null));
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_FINISH_IMPORT, String.valueOf(importId), null);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COUNT));
+    }
+
+    /*
+     * Tests that an import skips the notes that are already there, found by their content
+     * hashes, so that importing the same notes again changes nothing.
+     */
+    public void testImportContentHash() {
+        insertData();
+        long existingId = 1;
+        String title = TEST_NOTES[0].title;
+        String content = TEST_NOTES[0].note;
+        ContentValues[] values = new ContentValues[] {
+                importValues(existingId, title, content),
+                importValues(1000, "Imported", "New note"),
+                importValues(1001, "Imported", "New note")
+        };
+
+        // By _ID: the unchanged note is skipped, and the others are inserted
+        Bundle result = finishImport(values, null);
+        assertEquals(3, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_UPDATED_COUNT));
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT));
+        assertEquals(TEST_NOTES.length + 2, DatabaseUtils.queryNumEntries(mDb,
+                NotePad.Notes.TABLE_NAME));
+
+        // Importing the same notes again skips all of them, though the new notes got new IDs
+        result = finishImport(values, null);
+        assertEquals(3, result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT));
+        assertEquals(TEST_NOTES.length + 2, DatabaseUtils.queryNumEntries(mDb,
+                NotePad.Notes.TABLE_NAME));
+
+        // A note edited after the import is no longer the same, and is replaced by _ID
+        ContentValues edit = new ContentValues();
+        edit.put(NotePad.Notes.COLUMN_NAME_NOTE, "Edited");
+        Uri existingUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, existingId);
+        assertEquals(1, mMockResolver.update(existingUri, edit, null, null));
+        result = finishImport(values, null);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_UPDATED_COUNT));
+        assertEquals(2, result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT));
+        assertEquals(content, readNote(existingId));
+
+        // By content: a note whose _ID is taken by another note is inserted, not merged into it,
+        // and a note staged twice is inserted once
+        values = new ContentValues[] {
+                importValues(existingId, title, content),
+                importValues(existingId, "Other", "Other note"),
+                importValues(existingId, "Other", "Other note")
+        };
+        result = finishImport(values, NotePad.Notes.IMPORT_MATCH_CONTENT);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_UPDATED_COUNT));
+        assertEquals(2, result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT));
+        assertEquals(TEST_NOTES.length + 3, DatabaseUtils.queryNumEntries(mDb,
+                NotePad.Notes.TABLE_NAME));
+        assertEquals(content, readNote(existingId));
+        assertNoteCounters();
+
+        try {
+            finishImport(values, "title");
+            fail("An unknown match mode was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Stages notes for a new import and merges them, with a match mode or the default.
+    private Bundle finishImport(ContentValues[] values, String match) {
+        long importId = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_BEGIN_IMPORT, null, null)
+                .getLong(NotePad.Notes.KEY_IMPORT_ID);
+        mMockResolver.bulkInsert(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_IMPORT_URI_BASE, importId), values);
+        Bundle extras = new Bundle();
+        extras.putString(NotePad.Notes.KEY_IMPORT_MATCH, match);
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_FINISH_IMPORT, String.valueOf(importId), extras);
+    }
+
+    // Returns the content of a note, read from the notes table joined with the bodies.
+    private String readNote(long noteId) {
+        Cursor cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the values of a note to stage for an import.
+    private static ContentValues importValues(long id, String title, String content) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes._ID, id);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, content);
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, START_DATE);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        return values;
+    }
+
+    /*
+     * Tests paged queries of the notes. Reading page after page returns every note exactly
+     * once, in modification date order, including notes that were modified at the same time.
+     */
+    public void testKeysetPagination() {
+        // Inserts 25 notes, three to each modification date, and every other one a todo note.
+        final int noteCount = 25;
+        for (int index = 0; index < noteCount; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + index);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                    START_DATE + (index / 3) * ONE_DAY_MILLIS);
+            values.put(NotePad.Notes.COLUMN_NAME_STATUS,
+                    index % 2 == 0 ? NotePad.Notes.STATUS_COMPLETED : NotePad.Notes.STATUS_PENDING);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        assertEquals(noteCount, readPages(NotePad.Notes.CONTENT_URI, 10));
+        assertEquals(13, readPages(Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "todo"), 4));
+        assertEquals(noteCount, readPages(searchUri("note"), 7));
+
+        // A page after a position is read from an index, with or without a filter.
+        String select = "SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE ";
+        String page = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "<=" + START_DATE
+                + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "<" + START_DATE
+                + " OR " + NotePad.Notes._ID + "<10)"
+                + " ORDER BY " + NotePad.Notes.PAGE_SORT_ORDER + " LIMIT 10";
+        assertNoSort(select + page, null);
+        assertNoSort(select + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=? AND " + page,
+                new String[] { "1" });
+
+        // Invalid paging parameters are rejected.
+        String[] invalid = { "limit=0", "limit=ten", "after=5", "after=5,x" };
+        for (String query : invalid) {
+            try {
+                mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon().encodedQuery(query)
+                        .build(), null, null, null, null);
+                fail(query);
+            } catch (IllegalArgumentException e) {
+                // succeeded, so do nothing
+            }
+        }
+    }
+
+    /*
+     * Reads a notes URI page by page, checking that each page continues the order of the one
+     * before it. Returns the number of notes read.
+     */
+    private int readPages(Uri uri, int pageSize) {
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
+        int total = 0;
+        String after = null;
+        long lastModified = Long.MAX_VALUE;
+        long lastId = Long.MAX_VALUE;
+        while (true) {
+            Uri.Builder builder = uri.buildUpon().appendQueryParameter(
+                    NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(pageSize));
+            if (after != null) {
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+            }
+            Cursor cursor = mMockResolver.query(builder.build(), projection, null, null, null);
+            try {
+                assertTrue(cursor.getCount() <= pageSize);
+                if (cursor.getCount() == 0) {
+                    return total;
+                }
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long modified = cursor.getLong(1);
+                    assertTrue(modified < lastModified
+                            || (modified == lastModified && id < lastId));
+                    lastModified = modified;
+                    lastId = id;
+                    total++;
+                }
+                after = lastModified + "," + lastId;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    // Asserts that the query plan of a query does not sort its rows in a temporary B-tree.
+    private void assertNoSort(String sql, String[] selectionArgs) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                assertFalse(sql + ": " + detail, detail.contains("USE TEMP B-TREE"));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Builds a notes search URI for the given search text.
+    private static Uri searchUri(String searchText) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, searchText)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks the provider's full-text search against a LIKE scan, on a synthetic corpus of notes
+ * that mix Chinese and Latin text. Each search must return exactly the notes that the LIKE scan
+ * finds, so the benchmark also checks that the segmented index gives substring matches.
+ *
+ * The timings are written to the log under the "NoteSearchBenchmark" tag.
+ */
+public class NoteSearchBenchmarkTest extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NoteSearchBenchmark";
+
+    // The number of notes in the synthetic corpus
+    private static final int CORPUS_SIZE = 5000;
+
+    // The number of times each query is timed
+    private static final int RUNS = 20;
+
+    private static final String[] CHINESE_WORDS = {
+        "会议", "记录", "项目", "进度", "周报", "需求", "测试", "发布", "数据库", "索引",
+        "搜索", "笔记", "分类", "导入", "导出", "备份", "同步", "性能", "优化", "问题",
+        "讨论", "计划", "总结", "学习", "客户", "反馈", "设计", "评审", "上线", "回滚"
+    };
+
+    private static final String[] LATIN_WORDS = {
+        "android", "sqlite", "meeting", "report", "release", "index", "backup", "query",
+        "kotlin", "java", "draft", "todo", "review", "deploy", "cache", "latency"
+    };
+
+    private static final String[] QUERIES = {
+        "会议", "数据库索引", "库索", "记", "sqlite", "rel", "性能 android", "上线回滚", "评审 deploy",
+        "数据库sqlite", "java会议", "库index优", "备份cache"
+    };
+
+    private static final String[] ID_PROJECTION = { NotePad.Notes._ID };
+
+    private MockContentResolver mMockResolver;
+
+    public NoteSearchBenchmarkTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        // Inserts the corpus through the provider, so that every note is indexed, inside one
+        // transaction to keep the setup fast.
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        Random random = new Random(42);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < CORPUS_SIZE; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, randomText(random, 3));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, randomText(random, 40 + random.nextInt(40)));
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * Builds text of the given number of words. Chinese words are mostly written without
+     * spaces between them, and sentences end in Chinese punctuation. Half of the Latin words
+     * are written next to the Chinese words around them without spaces, but never next to
+     * another Latin word.
+     */
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        boolean previousLatin = false;
+        for (int i = 0; i < words; i++) {
+            if (random.nextInt(4) == 0) {
+                String word = LATIN_WORDS[random.nextInt(LATIN_WORDS.length)];
+                if (previousLatin || random.nextBoolean()) {
+                    text.append(' ').append(word).append(' ');
+                } else {
+                    text.append(word);
+                }
+                previousLatin = true;
+            } else {
+                text.append(CHINESE_WORDS[random.nextInt(CHINESE_WORDS.length)]);
+                previousLatin = false;
+            }
+            if (random.nextInt(8) == 0) {
+                text.append(random.nextBoolean() ? "，" : "。");
+            }
+        }
+        return text.toString();
+    }
+
+    /*
+     * Times each query through the search URI and as a LIKE scan, and checks that both return
+     * the same notes.
+     */
+    public void testSearchMatchesLikeScan() {
+        for (String query : QUERIES) {
+            Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                    .build();
+
+            // A LIKE scan that requires every word of the query in the title or content
+            String[] words = query.split(" ");
+            StringBuilder selection = new StringBuilder();
+            String[] selectionArgs = new String[words.length * 2];
+            for (int i = 0; i < words.length; i++) {
+                if (i > 0) {
+                    selection.append(" AND ");
+                }
+                selection.append("(").append(NotePad.Notes.COLUMN_NAME_TITLE).append(" LIKE ? OR ")
+                        .append(NotePad.Notes.COLUMN_NAME_NOTE).append(" LIKE ?)");
+                selectionArgs[i * 2] = "%" + words[i] + "%";
+                selectionArgs[i * 2 + 1] = "%" + words[i] + "%";
+            }
+
+            Set<Long> searchIds = queryIds(searchUri, null, null);
+            Set<Long> likeIds = queryIds(NotePad.Notes.CONTENT_URI, selection.toString(),
+                    selectionArgs);
+            if (query.matches(".*[a-z].*") && query.matches(".*[^ a-z].*")
+                    && query.indexOf(' ') < 0) {
+                // The index also finds Chinese and Latin words that a space or punctuation
+                // separates, which LIKE does not
+                assertTrue("results for \"" + query + "\"", searchIds.containsAll(likeIds));
+            } else {
+                assertEquals("results for \"" + query + "\"", likeIds, searchIds);
+            }
+
+            long searchNanos = timeQuery(searchUri, null, null);
+            long likeNanos = timeQuery(NotePad.Notes.CONTENT_URI, selection.toString(),
+                    selectionArgs);
+            Log.i(TAG, String.format("\"%s\": %d matches of %d notes, index %.2f ms, LIKE scan %.2f ms",
+                    query, searchIds.size(), CORPUS_SIZE, searchNanos / 1e6, likeNanos / 1e6));
+        }
+    }
+
+    // Returns the IDs of the notes a query returns.
+    private Set<Long> queryIds(Uri uri, String selection, String[] selectionArgs) {
+        Set<Long> ids = new HashSet<Long>();
+        Cursor cursor = mMockResolver.query(uri, ID_PROJECTION, selection, selectionArgs, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    // Returns the average time to run a query and fill its cursor.
+    private long timeQuery(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            Cursor cursor = mMockResolver.query(uri, ID_PROJECTION, selection, selectionArgs, null);
+            cursor.getCount();
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / RUNS;
+    }
+}
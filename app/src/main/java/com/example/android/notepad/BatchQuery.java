@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+
+/**
+ * Runs several queries of the Note Pad provider with one call, through
+ * {@link NotePad.BatchQueries#METHOD_QUERY}. Add the queries, then run them; the cursors are
+ * returned in the order the queries were added, and the caller closes them.
+ */
+public class BatchQuery {
+
+    private final ArrayList<Bundle> mQueries = new ArrayList<Bundle>();
+
+    /**
+     * Adds a query to the batch. The arguments are those of {@link ContentResolver#query}.
+     *
+     * @return The position of the query's cursor in the result of {@link #run}.
+     */
+    public int add(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        Bundle query = new Bundle();
+        query.putParcelable(NotePad.BatchQueries.KEY_URI, uri);
+        query.putStringArray(NotePad.BatchQueries.KEY_PROJECTION, projection);
+        query.putString(NotePad.BatchQueries.KEY_SELECTION, selection);
+        query.putStringArray(NotePad.BatchQueries.KEY_SELECTION_ARGS, selectionArgs);
+        query.putString(NotePad.BatchQueries.KEY_SORT_ORDER, sortOrder);
+        mQueries.add(query);
+        return mQueries.size() - 1;
+    }
+
+    /**
+     * Runs the queries. A query whose result was too large to return with the batch is run on
+     * its own.
+     *
+     * @return A cursor for each query, in the order they were added.
+     */
+    public Cursor[] run(ContentResolver resolver) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(NotePad.BatchQueries.KEY_QUERIES, mQueries);
+        Bundle reply = resolver.call(NotePad.BatchQueries.CONTENT_URI,
+                NotePad.BatchQueries.METHOD_QUERY, null, extras);
+        ArrayList<Bundle> results =
+                reply.<Bundle>getParcelableArrayList(NotePad.BatchQueries.KEY_RESULTS);
+
+        Cursor[] cursors = new Cursor[mQueries.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            Bundle query = mQueries.get(i);
+            Uri uri = query.getParcelable(NotePad.BatchQueries.KEY_URI);
+            Bundle result = results.get(i);
+            CursorWindow window = result.getParcelable(NotePad.BatchQueries.KEY_WINDOW);
+            if (window == null) {
+                cursors[i] = resolver.query(uri,
+                        query.getStringArray(NotePad.BatchQueries.KEY_PROJECTION),
+                        query.getString(NotePad.BatchQueries.KEY_SELECTION),
+                        query.getStringArray(NotePad.BatchQueries.KEY_SELECTION_ARGS),
+                        query.getString(NotePad.BatchQueries.KEY_SORT_ORDER));
+                continue;
+            }
+
+            WindowCursor cursor = new WindowCursor(
+                    result.getStringArray(NotePad.BatchQueries.KEY_COLUMNS), window);
+            cursor.setNotificationUri(resolver, uri);
+            cursors[i] = cursor;
+        }
+        return cursors;
+    }
+}
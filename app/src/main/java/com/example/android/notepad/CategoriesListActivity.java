@@ -16,6 +16,8 @@
 
 package com.example.android.notepad;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import androidx.appcompat.app.AppCompatActivity;
@@ -111,8 +113,8 @@ public class CategoriesListActivity extends AppCompatActivity {
     private void loadData() {
         mDataList.clear();
         
-        // 获取所有分类
-        List<Category> categories = mCategoryDataSource.getAllCategories();
+        // 获取所有分类及其笔记数量（一次查询）
+        List<Category> categories = mCategoryDataSource.getAllCategoriesWithCounts();
         
         // 添加默认分类（所有笔记）
         Map<String, Object> allNotesItem = new HashMap<>();
@@ -127,9 +129,8 @@ public class CategoriesListActivity extends AppCompatActivity {
             item.put("id", category.getId());
             item.put("name", category.getName());
             
-            // 获取该分类下的笔记数量
-            int count = mCategoryDataSource.getNotesCountByCategory(category.getId());
-            item.put("count", String.valueOf(count));
+            // 该分类下的笔记数量
+            item.put("count", String.valueOf(category.getNoteCount()));
             
             mDataList.add(item);
         }
@@ -206,19 +207,33 @@ public class CategoriesListActivity extends AppCompatActivity {
     }
     
     /**
-     * 删除分类
+     * 删除分类，分类下的笔记在同一事务中变为无分类，删除前请用户确认
      * @param categoryId 分类ID
      * @param categoryName 分类名称
      */
-    private void deleteCategory(long categoryId, String categoryName) {
+    private void deleteCategory(final long categoryId, final String categoryName) {
         // 检查该分类下是否有笔记
         int noteCount = mCategoryDataSource.getNotesCountByCategory(categoryId);
         
-        if (noteCount > 0) {
-            Toast.makeText(this, "无法删除非空分类，请先清空该分类下的笔记", Toast.LENGTH_LONG).show();
+        if (noteCount == 0) {
+            performDeleteCategory(categoryId, categoryName);
             return;
         }
         
+        new AlertDialog.Builder(this)
+                .setTitle("删除分类")
+                .setMessage("分类 \"" + categoryName + "\" 下的" + noteCount + "条笔记将变为无分类，确定删除吗？")
+                .setPositiveButton(R.string.menu_delete, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        performDeleteCategory(categoryId, categoryName);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+    
+    private void performDeleteCategory(long categoryId, String categoryName) {
         // 删除分类
         int result = mCategoryDataSource.deleteCategory(categoryId);
         if (result > 0) {
@@ -24,6 +24,8 @@ public class Category {
     private String name;
     private long createdTime;
     private long modifiedTime;
+    // 分类下的笔记数量，仅由CategoryDataSource.getAllCategoriesWithCounts()填充
+    private int noteCount;
 
     public Category() {
     }
@@ -68,6 +70,14 @@ public class Category {
         this.modifiedTime = modifiedTime;
     }
 
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    public void setNoteCount(int noteCount) {
+        this.noteCount = noteCount;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
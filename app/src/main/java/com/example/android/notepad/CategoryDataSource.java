@@ -29,6 +29,25 @@ import java.util.List;
  * CategoryDataSource数据访问类，负责分类的增删改查操作
  */
 public class CategoryDataSource {
+    private static final String[] CATEGORY_PROJECTION = {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_CREATED_TIME,
+            NotePad.Categories.COLUMN_NAME_MODIFIED_TIME
+    };
+
+    private static final String[] CATEGORY_WITH_COUNT_PROJECTION = {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_CREATED_TIME,
+            NotePad.Categories.COLUMN_NAME_MODIFIED_TIME,
+            NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+    };
+
+    private static final String[] NOTE_COUNT_PROJECTION = {
+            NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT
+    };
+
     private Context mContext;
 
     public CategoryDataSource(Context context) {
@@ -75,7 +94,7 @@ public class CategoryDataSource {
     }
 
     /**
-     * 删除分类
+     * 删除分类，分类下的笔记在同一事务中变为无分类
      * @param categoryId 分类ID
      * @return 删除成功的记录数
      */
@@ -95,30 +114,68 @@ public class CategoryDataSource {
      * @return 分类列表
      */
     public List<Category> getAllCategories() {
-        List<Category> categories = new ArrayList<>();
+        return readCategories(mContext.getContentResolver().query(
+                NotePad.Categories.CONTENT_URI,
+                CATEGORY_PROJECTION,
+                null,
+                null,
+                NotePad.Categories.DEFAULT_SORT_ORDER
+        ));
+    }
 
-        String[] projection = {
-                NotePad.Categories._ID,
-                NotePad.Categories.COLUMN_NAME_NAME,
-                NotePad.Categories.COLUMN_NAME_CREATED_TIME,
-                NotePad.Categories.COLUMN_NAME_MODIFIED_TIME
-        };
+    /**
+     * 把查询所有分类加入批量查询，结果用{@link #readCategories(Cursor)}读取
+     * @param batch 批量查询
+     * @return 查询结果在批量查询中的位置
+     */
+    public static int addAllCategoriesQuery(BatchQuery batch) {
+        return batch.add(NotePad.Categories.CONTENT_URI, CATEGORY_PROJECTION, null, null,
+                NotePad.Categories.DEFAULT_SORT_ORDER);
+    }
 
-        Cursor cursor = mContext.getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                projection,
+    /**
+     * 查询所有分类及每个分类下的笔记数量，只需一次查询
+     * @return 分类列表，笔记数量通过{@link Category#getNoteCount()}获取
+     */
+    public List<Category> getAllCategoriesWithCounts() {
+        return readCategories(mContext.getContentResolver().query(
+                NotePad.Categories.CONTENT_WITH_COUNTS_URI,
+                CATEGORY_WITH_COUNT_PROJECTION,
                 null,
                 null,
                 NotePad.Categories.DEFAULT_SORT_ORDER
-        );
+        ));
+    }
+
+    /**
+     * 把查询所有分类及笔记数量加入批量查询，结果用{@link #readCategories(Cursor)}读取
+     * @param batch 批量查询
+     * @return 查询结果在批量查询中的位置
+     */
+    public static int addAllCategoriesWithCountsQuery(BatchQuery batch) {
+        return batch.add(NotePad.Categories.CONTENT_WITH_COUNTS_URI,
+                CATEGORY_WITH_COUNT_PROJECTION, null, null, NotePad.Categories.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * 读取分类查询的结果并关闭游标，结果含笔记数量列时一并读取
+     * @param cursor 分类查询的结果，可以为null
+     * @return 分类列表
+     */
+    public static List<Category> readCategories(Cursor cursor) {
+        List<Category> categories = new ArrayList<>();
 
         if (cursor != null) {
+            int countIndex = cursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_NOTE_COUNT);
             while (cursor.moveToNext()) {
                 Category category = new Category();
                 category.setId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Categories._ID)));
                 category.setName(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Categories.COLUMN_NAME_NAME)));
                 category.setCreatedTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Categories.COLUMN_NAME_CREATED_TIME)));
                 category.setModifiedTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Categories.COLUMN_NAME_MODIFIED_TIME)));
+                if (countIndex >= 0) {
+                    category.setNoteCount(cursor.getInt(countIndex));
+                }
                 categories.add(category);
             }
             cursor.close();
@@ -172,22 +229,51 @@ public class CategoryDataSource {
      * @return 笔记数量
      */
     public int getNotesCountByCategory(long categoryId) {
-        String[] projection = {NotePad.Notes._ID};
-        
-        String selection = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
-        String[] selectionArgs = {String.valueOf(categoryId)};
+        return sumNoteCounters(NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[]{String.valueOf(categoryId)});
+    }
 
-        Cursor cursor = mContext.getContentResolver().query(
-                NotePad.Notes.CONTENT_URI,
-                projection,
+    /**
+     * 获取笔记总数
+     * @return 笔记数量
+     */
+    public int getTotalNotesCount() {
+        return sumNoteCounters(null, null);
+    }
+
+    /**
+     * 把查询笔记总数加入批量查询，结果用{@link #readNoteCount(Cursor)}读取
+     * @param batch 批量查询
+     * @return 查询结果在批量查询中的位置
+     */
+    public static int addTotalNotesCountQuery(BatchQuery batch) {
+        return batch.add(NotePad.NoteCounters.CONTENT_URI, NOTE_COUNT_PROJECTION, null, null, null);
+    }
+
+    /**
+     * 汇总符合条件的笔记计数器，计数器按分类和状态各有一行，不需要读取笔记本身
+     */
+    private int sumNoteCounters(String selection, String[] selectionArgs) {
+        return readNoteCount(mContext.getContentResolver().query(
+                NotePad.NoteCounters.CONTENT_URI,
+                NOTE_COUNT_PROJECTION,
                 selection,
                 selectionArgs,
                 null
-        );
+        ));
+    }
 
+    /**
+     * 汇总笔记计数器查询的结果并关闭游标
+     * @param cursor 笔记计数器查询的结果，可以为null
+     * @return 笔记数量
+     */
+    public static int readNoteCount(Cursor cursor) {
         int count = 0;
         if (cursor != null) {
-            count = cursor.getCount();
+            while (cursor.moveToNext()) {
+                count += cursor.getInt(0);
+            }
             cursor.close();
         }
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Delivers the provider's change notifications. A notification is held for
+ * {@link #DELAY_MILLIS}, and every other notification that arrives in that time is merged
+ * with it, so that observers requery once for a burst of writes instead of once per write.
+ *
+ * The merged URIs are delivered together: in one call on Android 11 and later, where each
+ * observer gets all of its URIs in one onChange(), and one call per URI before that. A URI
+ * is dropped when one of its ancestors is delivered with it, since observers of a URI are
+ * also notified of changes to its ancestors.
+ */
+class ChangeNotifier {
+
+    /**
+     * How long a notification waits for others to merge with
+     */
+    static final long DELAY_MILLIS = 100;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The URIs waiting to be delivered, in the order they were first notified. Guarded by this.
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Notifies observers of a change to a URI, within {@link #DELAY_MILLIS}.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mFlush, DELAY_MILLIS);
+            }
+            mPending.add(uri);
+        }
+    }
+
+    /**
+     * Notifies observers of the changes of a committed transaction now, together with any
+     * notifications that are waiting.
+     */
+    void notifyChange(Collection<Uri> uris) {
+        synchronized (this) {
+            mPending.addAll(uris);
+        }
+        flush();
+    }
+
+    /**
+     * Delivers the waiting notifications now.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            uris = coalesce(mPending);
+            mPending.clear();
+            mHandler.removeCallbacks(mFlush);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            mResolver.notifyChange(uris, null, 0);
+        } else {
+            for (Uri uri : uris) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the URIs without those whose ancestor is also among them.
+     */
+    static List<Uri> coalesce(Collection<Uri> uris) {
+        List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            if (!hasAncestorIn(uri, uris)) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasAncestorIn(Uri uri, Collection<Uri> uris) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder ancestor = new Uri.Builder().scheme(uri.getScheme())
+                .encodedAuthority(uri.getEncodedAuthority());
+        for (int i = 0; i < segments.size(); i++) {
+            if (uris.contains(ancestor.build())) {
+                return true;
+            }
+            ancestor.appendPath(segments.get(i));
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+
+/**
+ * Computes the content hashes of the notes, which identify a note by its title and content so
+ * that an import can find the notes it already has through an index, without reading them.
+ *
+ * A hash is the first 64 bits of the SHA-256 of the title and the content in UTF-8, separated
+ * by a NUL character. A null title or content hashes like an empty one.
+ */
+class ContentHashes {
+
+    /**
+     * The column of the notes table that holds the note's content hash.
+     */
+    static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+
+    // This class cannot be instantiated
+    private ContentHashes() {
+    }
+
+    /**
+     * Returns the content hash of a note.
+     */
+    static long of(String title, String content) {
+        Hasher hasher = new Hasher(title);
+        try {
+            if (content != null) {
+                hasher.mWriter.write(content);
+            }
+            return hasher.finish();
+        } catch (IOException e) {
+            // The writer only writes to the digest, which does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the content hashes of the given notes from their current title and content.
+     * Notes that no longer exist are ignored. The content is read one chunk at a time.
+     */
+    static void update(SQLiteDatabase db, Collection<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            return;
+        }
+
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID + " IN (");
+        boolean first = true;
+        for (Long id : noteIds) {
+            if (!first) {
+                where.append(',');
+            }
+            where.append(id.longValue());
+            first = false;
+        }
+        where.append(')');
+        updateWhere(db, where.toString());
+    }
+
+    /**
+     * Computes the content hashes of every note.
+     */
+    static void updateAll(SQLiteDatabase db) {
+        updateWhere(db, null);
+    }
+
+    private static void updateWhere(SQLiteDatabase db, String where) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                where, null, null, null, null);
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + COLUMN_NAME_CONTENT_HASH + "=? WHERE " + NotePad.Notes._ID + "=?");
+        try {
+            while (c.moveToNext()) {
+                long noteId = c.getLong(0);
+                Hasher hasher = new Hasher(c.getString(1));
+                NoteBodies.copy(db, noteId, hasher.mWriter);
+                update.bindLong(1, hasher.finish());
+                update.bindLong(2, noteId);
+                update.executeUpdateDelete();
+            }
+        } catch (IOException e) {
+            // The writer only writes to the digest, which does not fail
+            throw new IllegalStateException(e);
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Hashes a title, and then the content that is written to its writer.
+     */
+    private static class Hasher {
+        private final MessageDigest mDigest;
+        final Writer mWriter;
+
+        Hasher(String title) {
+            try {
+                mDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android platform has SHA-256
+                throw new IllegalStateException(e);
+            }
+            try {
+                mWriter = new OutputStreamWriter(new DigestOutputStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                }, mDigest), "UTF-8");
+                if (title != null) {
+                    mWriter.write(title);
+                }
+                mWriter.write(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        long finish() throws IOException {
+            mWriter.flush();
+            byte[] digest = mDigest.digest();
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+    }
+}
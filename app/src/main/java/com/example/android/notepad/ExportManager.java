@@ -19,11 +19,10 @@ package com.example.android.notepad;
 import android.content.ContentResolver;
 import android.os.AsyncTask;
 import android.util.Log;
-import org.json.JSONException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
-import java.util.List;
 
 /**
  * ExportManager类负责处理笔记数据的导出逻辑
@@ -117,110 +116,90 @@ public class ExportManager {
                     return new IOException("文件输出目录没有写入权限: " + parentDir.getAbsolutePath());
                 }
 
-                // 获取所有笔记数据
-                List<Note> notes = manager.dataSource.getAllNotes();
-                if (notes == null || notes.isEmpty()) {
+                // 检查是否有笔记，笔记数量从计数器读取，不需要查询笔记本身
+                noteCount = manager.dataSource.getNotesCount();
+                if (noteCount == 0) {
                     Log.w(TAG, "没有笔记数据");
                     return new Exception("没有笔记数据需要导出");
                 }
-                noteCount = notes.size();
-                Log.d(TAG, "获取了 " + noteCount + " 条笔记");
+                Log.d(TAG, "共有 " + noteCount + " 条笔记");
 
                 // 更新进度
                 publishProgress(50);
 
-                // 序列化为JSON格式
-                long exportTime = System.currentTimeMillis();
-                String jsonContent = JsonSerializer.serializeNotes(notes, exportTime);
-                Log.d(TAG, "JSON序列化完成, 内容长度: " + jsonContent.length() + " 字节");
-                
-                // 验证JSON内容是否有效
-                if (jsonContent == null || jsonContent.trim().isEmpty()) {
-                    Log.e(TAG, "JSON序列化失败");
-                    return new Exception("JSON序列化失败");
+                // Provider按页查询笔记并直接写成JSON流，这里把流写入文件
+                // 整个过程中内存里只有一页笔记和一个缓冲区，与笔记数量无关
+                Log.d(TAG, "正在写入文件: " + outputFile.getAbsolutePath());
+                if (outputFile.exists()) {
+                    Log.d(TAG, "文件已存在，删除旧文件: " + outputFile.delete());
                 }
-
-                // 保存到文件
-                Log.d(TAG, "正在写入文件...");
-                Log.d(TAG, "目标文件: " + outputFile.getAbsolutePath());
-                Log.d(TAG, "JSON内容大小: " + jsonContent.length() + " 字符");
-                
+                long fileSize;
                 try {
-                    FileUtils.writeToFile(outputFile, jsonContent);
-                    Log.d(TAG, "FileUtils.writeToFile执行完成");
+                    fileSize = FileUtils.writeToFile(outputFile,
+                            manager.dataSource.openNotesJson());
                 } catch (IOException e) {
                     Log.e(TAG, "文件写入失败", e);
-                    // 清理可能残留的空文件
-                    if (outputFile.exists() && outputFile.length() == 0) {
-                        Log.d(TAG, "删除空文件: " + outputFile.delete());
-                    }
                     return e;
-                } catch (Exception e) {
-                    Log.e(TAG, "文件写入发生未预期异常", e);
-                    // 清理可能残留的文件
-                    if (outputFile.exists()) {
-                        Log.d(TAG, "删除残留文件: " + outputFile.delete());
-                    }
-                    return new IOException("文件写入失败: " + e.getMessage(), e);
                 }
 
-                // 二次验证 - 确保文件真正被创建并写入成功
-                // 等待文件系统完全同步（增加延迟时间）
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    Log.w(TAG, "延迟被中断", e);
-                }
-                
-                if (!outputFile.exists()) {
-                    Log.e(TAG, "验证失败：文件不存在");
-                    Log.e(TAG, "期望路径: " + outputFile.getAbsolutePath());
-                    Log.e(TAG, "父目录是否存在: " + (parentDir != null && parentDir.exists()));
-                    if (parentDir != null && parentDir.exists()) {
-                        Log.e(TAG, "父目录内容: " + java.util.Arrays.toString(parentDir.list()));
-                    }
-                    return new IOException("文件写入后不存在: " + outputFile.getAbsolutePath());
-                }
-
-                long fileSize = outputFile.length();
-                Log.d(TAG, "文件验证通过, 大小: " + fileSize + " 字节");
-                
-                if (fileSize == 0) {
-                    Log.e(TAG, "验证失败：文件大小为0");
-                    // 删除空文件
+                // 写入流的一方出错时流会提前结束，完整的备份在末尾记录写入的笔记数量
+                int exportedCount = readNoteCount(outputFile);
+                if (exportedCount < 0) {
+                    Log.e(TAG, "验证失败：JSON不完整, 大小: " + fileSize + " 字节");
                     outputFile.delete();
-                    return new IOException("文件大小为0字节，数据未正常写入");
+                    return new IOException("文件写入不完整: " + fileSize + "字节");
                 }
-                
-                // 验证文件大小是否合理（至少应该有JSON基本结构）
-                if (fileSize < 10) {
-                    Log.e(TAG, "验证失败：文件过小，疑似写入失败");
-                    outputFile.delete();
-                    return new IOException("文件异常过小: " + fileSize + "字节");
-                }
-                
-                // 放宽验证条件，只要有部分内容写入就认为成功
-                if (fileSize < jsonContent.length() / 10) {
-                    Log.e(TAG, "验证失败：文件写入严重不完整");
+
+                // 写入的笔记数量应与计数器一致，导出期间有笔记被添加或删除时与导出后的数量一致
+                if (exportedCount != noteCount
+                        && exportedCount != manager.dataSource.getNotesCount()) {
+                    Log.e(TAG, "验证失败：导出了 " + exportedCount + " 条笔记，应为 " + noteCount + " 条");
                     outputFile.delete();
-                    return new IOException("文件写入严重不完整: 期望" + jsonContent.length() + "字节，实际" + fileSize + "字节");
+                    return new IOException("导出的笔记不完整: " + exportedCount + "/" + noteCount);
                 }
+                Log.d(TAG, "文件验证通过, 大小: " + fileSize + " 字节, 笔记: " + exportedCount + " 条");
 
                 // 更新进度
                 publishProgress(100);
                 Log.d(TAG, "导出完成！");
 
                 return null;
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON异常", e);
-                return e;
             } catch (Exception e) {
                 Log.e(TAG, "未预期错误", e);
                 return new Exception("未预期错误: " + e.getMessage(), e);
             }
         }
 
+        /**
+         * 读取JSON备份末尾记录的笔记数量，完整的备份以 ],"noteCount":N} 结尾
+         * 笔记的标题和内容中的引号都被转义，所以这个结尾不会出现在笔记中
+         * @return 笔记数量，文件不完整时返回-1
+         */
+        private static int readNoteCount(File file) throws IOException {
+            String suffix = "],\"" + JsonSerializer.NOTE_COUNT_KEY + "\":";
+            int tailLength = (int) Math.min(file.length(), suffix.length() + 11);
+            byte[] tail = new byte[tailLength];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(file.length() - tailLength);
+                raf.readFully(tail);
+            } finally {
+                raf.close();
+            }
+
+            String text = new String(tail, "UTF-8");
+            int start = text.lastIndexOf(suffix);
+            if (start < 0 || !text.endsWith("}")) {
+                return -1;
+            }
+            try {
+                return Integer.parseInt(
+                        text.substring(start + suffix.length(), text.length() - 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
         @Override
         protected void onProgressUpdate(Integer... values) {
             if (callback != null && values.length > 0) {
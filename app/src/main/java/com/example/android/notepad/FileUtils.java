@@ -158,6 +158,51 @@ public class FileUtils {
         }
     }
 
+    /**
+     * 将输入流的内容写入文件，边读边写，内存占用与内容大小无关
+     * 写入后同步到磁盘，写入失败时删除不完整的文件
+     * @param file 目标文件，父目录需已存在
+     * @param in 输入流，写入后由本方法关闭
+     * @return 写入的字节数
+     * @throws IOException 如果读取或写入过程中出现错误
+     */
+    public static long writeToFile(File file, InputStream in) throws IOException {
+        Log.d(TAG, "开始写入文件: " + file.getAbsolutePath());
+        FileOutputStream fos = null;
+        boolean writeSuccess = false;
+        long total = 0;
+        try {
+            fos = new FileOutputStream(file);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                fos.write(buffer, 0, count);
+                total += count;
+            }
+            fos.getFD().sync();
+            fos.close();
+            writeSuccess = true;
+            Log.d(TAG, "文件写入完成，大小: " + total + " 字节");
+            return total;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭输入流失败", e);
+            }
+            if (!writeSuccess) {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                        // 忽略关闭异常
+                    }
+                }
+                Log.d(TAG, "删除不完整的文件: " + file.delete());
+            }
+        }
+    }
+
     /**
      * 从文件读取字符串内容
      * @param file 源文件
@@ -196,6 +196,14 @@ public class ImportActivity extends Activity {
         progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
         progressDialog.setMax(100);
         progressDialog.setCancelable(false);
+        // 取消时丢弃已暂存的笔记，不会导入任何笔记
+        progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "取消",
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        importManager.cancelImport();
+                    }
+                });
         progressDialog.show();
     }
 
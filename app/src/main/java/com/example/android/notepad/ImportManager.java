@@ -18,41 +18,116 @@ package com.example.android.notepad;
 
 import android.content.ContentResolver;
 import android.os.AsyncTask;
-import org.json.JSONException;
+import android.os.Bundle;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ImportManager类负责处理从文件导入笔记数据的逻辑
- * 包括解析JSON文件、验证数据格式并插入到数据库中
+ * 包括逐条解析JSON文件、验证数据格式并合并到数据库中
  */
 public class ImportManager {
+    /**
+     * 默认每批写入的笔记数量
+     */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /**
+     * 一批笔记内容的字符数上限，超过时提前提交这一批
+     */
+    private static final long MAX_BATCH_CHARS = 256 * 1024;
+
+    /**
+     * 解析线程和写入线程之间的队列最多容纳的批次数，队列满时解析线程等待写入线程
+     */
+    static final int QUEUE_CAPACITY = 2;
+
+    /**
+     * 队列满时解析线程每次等待的时间，每次等待后检查写入线程是否已经停止
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
     private NoteDataSource dataSource;
     private ContentResolver contentResolver;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean matchContent;
+    private ImportTask importTask;
 
     public ImportManager(ContentResolver contentResolver) {
         this.contentResolver = contentResolver;
         this.dataSource = new NoteDataSource(contentResolver);
     }
 
+    /**
+     * 设置每批暂存的笔记数量，每批通过一次调用传给Provider
+     * 批次越大调用越少，但批次占用的内存越多
+     * @param batchSize 每批的笔记数量，至少为1
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize必须至少为1: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 设置导入的笔记如何与已有笔记匹配
+     * 默认按ID匹配，ID已存在的笔记被更新；按内容匹配时，标题和内容与已有笔记相同的笔记被跳过，
+     * 其余的都作为新笔记插入，适合把备份导入到另一台设备上已有的笔记中
+     * @param matchContent 是否按内容匹配
+     */
+    public void setMatchByContent(boolean matchContent) {
+        this.matchContent = matchContent;
+    }
+
     /**
      * 异步从文件导入笔记
+     * 笔记在一个线程中逐条从文件解析，在另一个线程中分批暂存，全部暂存后在一个事务中合并，
+     * 导入失败或被取消时不会导入任何笔记
      * @param inputFile 输入文件
      * @param callback 导入回调接口
      */
     public void importNotes(File inputFile, ImportCallback callback) {
-        new ImportTask(this, inputFile, callback).execute();
+        importTask = new ImportTask(this, inputFile, callback);
+        importTask.execute();
+    }
+
+    /**
+     * 替换读写笔记的数据源，测试用来模拟慢速或失败的写入
+     */
+    void setDataSourceForTest(NoteDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 返回正在进行的导入的队列中等待写入的批次数，测试用来检查解析线程是否在队列满时等待
+     */
+    int getQueuedBatchCountForTest() {
+        return importTask != null ? importTask.queue.size() : 0;
     }
 
     /**
      * 取消导入操作
+     * 笔记合并之前取消时，已暂存的笔记被丢弃，回调收到onError；合并开始后取消不再生效
      */
     public void cancelImport() {
-        // 当前实现中没有需要特别取消的操作
-        // 在实际应用中，可以在这里添加取消逻辑
+        if (importTask != null) {
+            importTask.cancel(false);
+        }
     }
 
     /**
@@ -62,6 +137,7 @@ public class ImportManager {
         private WeakReference<ImportManager> managerRef;
         private File inputFile;
         private ImportCallback callback;
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
         ImportTask(ImportManager manager, File inputFile, ImportCallback callback) {
             this.managerRef = new WeakReference<>(manager);
@@ -71,68 +147,177 @@ public class ImportManager {
 
         @Override
         protected ImportResult doInBackground(Void... voids) {
+            // 检查是否已经取消
+            if (isCancelled()) {
+                return new ImportResult(new Exception("Import cancelled"), 0);
+            }
+
+            ImportManager manager = managerRef.get();
+            if (manager == null) {
+                return new ImportResult(new Exception("ImportManager is null"), 0);
+            }
+
+            // 本线程逐条解析笔记，写入线程分批暂存，两者通过有界队列交接，解析与数据库写入同时进行
+            // 队列满时解析线程等待，内存中只有队列中的和正在解析、暂存的几批笔记
+            // 所有笔记暂存后在一个事务中合并，已有的相同笔记被跳过
+            NoteDataSource dataSource = manager.dataSource;
+            FutureTask<Void> writer = null;
+            long importId = 0;
+            boolean merged = false;
             try {
-                // 检查是否已经取消
-                if (isCancelled()) {
-                    return new ImportResult(new Exception("Import cancelled"), 0);
+                FileInputStream in = new FileInputStream(inputFile);
+                JsonSerializer.NoteReader reader = new JsonSerializer.NoteReader(
+                        new BufferedReader(new InputStreamReader(in, "UTF-8")));
+                try {
+                    importId = dataSource.beginImport();
+                    writer = new FutureTask<>(new BatchWriter(dataSource, importId, queue));
+                    new Thread(writer, "NoteImportWriter").start();
+                    try {
+                        readNotes(manager.batchSize, in, reader, queue, writer);
+                    } finally {
+                        // 通知写入线程没有更多的笔记
+                        offer(queue, END, writer);
+                    }
+                } finally {
+                    reader.close();
                 }
 
-                ImportManager manager = managerRef.get();
-                if (manager == null) {
-                    return new ImportResult(new Exception("ImportManager is null"), 0);
+                // 等待写入线程暂存完所有笔记，暂存失败时抛出它的异常
+                writer.get();
+                if (isCancelled()) {
+                    return new ImportResult(new Exception("Import cancelled"), 0);
                 }
+                publishProgress(90);
 
-                // 从文件读取内容
-                String fileContent = FileUtils.readFromFile(inputFile);
+                // 合并所有暂存的笔记，跳过的笔记不计入导入数量
+                Bundle result = dataSource.finishImport(importId, manager.matchContent);
+                merged = true;
+                int importedCount = result.getInt(NotePad.Notes.KEY_COUNT)
+                        - result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT);
 
                 // 更新进度
-                publishProgress(30);
-
-                // 反序列化JSON数据
-                JsonSerializer.NotesData notesData = JsonSerializer.deserializeNotes(fileContent);
+                publishProgress(100);
 
-                // 更新进度
-                publishProgress(60);
-
-                // 处理导入的笔记数据
-                Note[] importedNotes = notesData.getNotes();
-                int importedCount = 0;
-
-                for (int i = 0; i < importedNotes.length; i++) {
-                    Note importedNote = importedNotes[i];
-                    
-                    // 检查是否已存在相同ID的笔记
-                    Note existingNote = manager.dataSource.getNoteById(importedNote.getId());
-                    
-                    if (existingNote != null) {
-                        // 如果存在，更新现有笔记
-                        importedNote.setModifyTime(System.currentTimeMillis());
-                        manager.dataSource.updateNote(importedNote);
-                    } else {
-                        // 如果不存在，插入新笔记
-                        // 注意：我们需要重新设置创建时间和修改时间以避免时间错乱
-                        importedNote.setCreateTime(System.currentTimeMillis());
-                        importedNote.setModifyTime(System.currentTimeMillis());
-                        manager.dataSource.insertNote(importedNote);
+                return new ImportResult(null, importedCount);
+            } catch (IOException e) {
+                return new ImportResult(e, 0);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                return new ImportResult(cause instanceof Exception ? (Exception) cause : e, 0);
+            } catch (InterruptedException e) {
+                return new ImportResult(new Exception("Import cancelled"), 0);
+            } catch (RuntimeException e) {
+                // 开始或合并导入时数据库出错，例如存储空间已满
+                return new ImportResult(e, 0);
+            } finally {
+                if (writer != null && !merged) {
+                    stopWriter(queue, writer);
+                    try {
+                        dataSource.discardImport(importId);
+                    } catch (RuntimeException e) {
+                        // 没能丢弃的暂存笔记在下次打开数据库时被删除
                     }
-                    
-                    importedCount++;
-                    
-                    // 更新进度
-                    if (i % 5 == 0) { // 每5个笔记更新一次进度
-                        int progress = 60 + (i * 40 / importedNotes.length);
-                        publishProgress(progress);
+                }
+            }
+        }
+
+        /**
+         * 逐条解析笔记，并把每批笔记放入队列
+         * 取消导入或写入线程停止时不再解析
+         */
+        private void readNotes(int batchSize, FileInputStream in,
+                JsonSerializer.NoteReader reader, BlockingQueue<Batch> queue, Future<?> writer)
+                throws IOException, InterruptedException {
+            List<Note> batch = new ArrayList<>(batchSize);
+            long batchChars = 0;
+            Note importedNote;
+            while ((importedNote = reader.next()) != null) {
+                if (isCancelled()) {
+                    return;
+                }
+
+                // 导入的笔记使用当前时间作为创建时间和修改时间，以避免时间错乱
+                importedNote.setCreateTime(System.currentTimeMillis());
+                importedNote.setModifyTime(System.currentTimeMillis());
+                batch.add(importedNote);
+                if (importedNote.getContent() != null) {
+                    batchChars += importedNote.getContent().length();
+                }
+
+                // 一批笔记通过一次调用传给Provider，长笔记较多时提前提交以限制调用的大小
+                if (batch.size() >= batchSize || batchChars >= MAX_BATCH_CHARS) {
+                    if (!offer(queue, new Batch(batch, in.getChannel().position()), writer)) {
+                        return;
                     }
+                    batch = new ArrayList<>(batchSize);
+                    batchChars = 0;
                 }
+            }
+            if (!batch.isEmpty()) {
+                offer(queue, new Batch(batch, inputFile.length()), writer);
+            }
+        }
 
-                // 更新进度
-                publishProgress(100);
+        /**
+         * 把一批笔记放入队列，队列满时等待写入线程取走
+         * @return 是否放入了队列，写入线程已经停止或导入被取消时为false
+         */
+        private boolean offer(BlockingQueue<Batch> queue, Batch batch, Future<?> writer)
+                throws InterruptedException {
+            while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone() || isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-                return new ImportResult(null, importedCount);
-            } catch (JSONException e) {
-                return new ImportResult(e, 0);
-            } catch (IOException e) {
-                return new ImportResult(e, 0);
+        /**
+         * 导入失败或被取消时停止写入线程：丢弃队列中的笔记，并等待写入线程暂存完当前这批，
+         * 以免它在暂存的笔记被丢弃之后再暂存
+         */
+        private void stopWriter(BlockingQueue<Batch> queue, Future<?> writer) {
+            queue.clear();
+            queue.offer(END);
+            try {
+                writer.get();
+            } catch (ExecutionException e) {
+                // 暂存失败已经作为导入结果返回
+            } catch (InterruptedException e) {
+                // 不再等待，没来得及丢弃的暂存笔记在下次打开数据库时被删除
+            }
+        }
+
+        /**
+         * 写入线程，从队列中逐批取出笔记并暂存，直到取到{@link #END}或导入被取消
+         * 按已暂存笔记在文件中的位置更新进度，合并占最后的一部分
+         */
+        private class BatchWriter implements Callable<Void> {
+            private final NoteDataSource dataSource;
+            private final long importId;
+            private final BlockingQueue<Batch> queue;
+            private final long fileLength;
+
+            BatchWriter(NoteDataSource dataSource, long importId, BlockingQueue<Batch> queue) {
+                this.dataSource = dataSource;
+                this.importId = importId;
+                this.queue = queue;
+                this.fileLength = inputFile.length();
+            }
+
+            @Override
+            public Void call() throws InterruptedException {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    dataSource.stageImport(importId, batch.notes);
+                    if (fileLength > 0) {
+                        publishProgress((int) (batch.position * 90 / fileLength));
+                    }
+                }
+                return null;
             }
         }
 
@@ -162,6 +347,25 @@ public class ImportManager {
         }
     }
 
+    /**
+     * 解析线程交给写入线程的一批笔记
+     */
+    private static class Batch {
+        final List<Note> notes;
+        // 解析完这批笔记时已读取的文件字节数
+        final long position;
+
+        Batch(List<Note> notes, long position) {
+            this.notes = notes;
+            this.position = position;
+        }
+    }
+
+    /**
+     * 表示没有更多笔记的批次
+     */
+    private static final Batch END = new Batch(Collections.<Note>emptyList(), 0);
+
     /**
      * 导入结果包装类
      */
@@ -16,10 +16,16 @@
 
 package com.example.android.notepad;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.List;
 
 /**
@@ -27,15 +33,17 @@ import java.util.List;
  */
 public class JsonSerializer {
 
-    private static final String VERSION_KEY = "version";
-    private static final String EXPORT_TIME_KEY = "exportTime";
-    private static final String NOTES_KEY = "notes";
-    private static final String ID_KEY = "id";
-    private static final String TITLE_KEY = "title";
-    private static final String CONTENT_KEY = "content";
-    private static final String CREATE_TIME_KEY = "createTime";
-    private static final String MODIFY_TIME_KEY = "modifyTime";
-    private static final String CURRENT_VERSION = "1.0";
+    static final String VERSION_KEY = "version";
+    static final String EXPORT_TIME_KEY = "exportTime";
+    static final String NOTES_KEY = "notes";
+    static final String ID_KEY = "id";
+    static final String TITLE_KEY = "title";
+    static final String CONTENT_KEY = "content";
+    static final String CREATE_TIME_KEY = "createTime";
+    static final String MODIFY_TIME_KEY = "modifyTime";
+    // 笔记数组之后记录的笔记数量，用于检查备份是否完整
+    static final String NOTE_COUNT_KEY = "noteCount";
+    static final String CURRENT_VERSION = "1.0";
 
     /**
      * 将笔记列表序列化为JSON字符串
@@ -61,6 +69,7 @@ public class JsonSerializer {
         }
 
         jsonObject.put(NOTES_KEY, notesArray);
+        jsonObject.put(NOTE_COUNT_KEY, notes.size());
         return jsonObject.toString();
     }
 
@@ -92,6 +101,125 @@ public class JsonSerializer {
         return new NotesData(version, exportTime, notes);
     }
 
+    /**
+     * 逐条读取JSON备份中的笔记，不把整个文件读入内存
+     * 格式与{@link #serializeNotes}相同，未知的字段被忽略
+     */
+    public static class NoteReader implements Closeable {
+        private final JsonReader reader;
+        private String version;
+        private long exportTime;
+        private boolean started;
+        private boolean inNotes;
+        private boolean finished;
+
+        /**
+         * @param in 备份内容，由{@link #close()}关闭
+         */
+        public NoteReader(Reader in) {
+            reader = new JsonReader(in);
+        }
+
+        /**
+         * 读取下一条笔记
+         * @return 笔记，读完所有笔记后返回null
+         * @throws IOException 如果读取失败或格式错误
+         */
+        public Note next() throws IOException {
+            try {
+                if (finished) {
+                    return null;
+                }
+                if (!started) {
+                    reader.beginObject();
+                    started = true;
+                }
+                while (true) {
+                    if (inNotes) {
+                        if (reader.hasNext()) {
+                            return readNote();
+                        }
+                        reader.endArray();
+                        inNotes = false;
+                    }
+                    if (!readToNotes()) {
+                        reader.endObject();
+                        finished = true;
+                        return null;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                throw new IOException("备份文件格式错误: " + e.getMessage(), e);
+            } catch (NumberFormatException e) {
+                throw new IOException("备份文件格式错误: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * 获取备份的版本，在第一次调用{@link #next()}之后可用
+         * @return 版本，备份中没有版本时返回null
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * 获取备份的导出时间，在第一次调用{@link #next()}之后可用
+         */
+        public long getExportTime() {
+            return exportTime;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        // 读取笔记数组之外的字段，进入笔记数组时返回true，读到对象末尾时返回false
+        private boolean readToNotes() throws IOException {
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (NOTES_KEY.equals(name)) {
+                    reader.beginArray();
+                    inNotes = true;
+                    return true;
+                } else if (VERSION_KEY.equals(name)) {
+                    version = reader.nextString();
+                } else if (EXPORT_TIME_KEY.equals(name)) {
+                    exportTime = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return false;
+        }
+
+        private Note readNote() throws IOException {
+            Note note = new Note();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (ID_KEY.equals(name)) {
+                    note.setId(reader.nextLong());
+                } else if (TITLE_KEY.equals(name)) {
+                    note.setTitle(reader.nextString());
+                } else if (CONTENT_KEY.equals(name)) {
+                    note.setContent(reader.nextString());
+                } else if (CREATE_TIME_KEY.equals(name)) {
+                    note.setCreateTime(reader.nextLong());
+                } else if (MODIFY_TIME_KEY.equals(name)) {
+                    note.setModifyTime(reader.nextLong());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return note;
+        }
+    }
+
     /**
      * 包装类，用于存储反序列化的结果
      */
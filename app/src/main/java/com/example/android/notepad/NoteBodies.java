@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the contents of the notes in chunks of {@link NotePad.Notes#NOTE_CHUNK_LENGTH}
+ * characters.
+ *
+ * A cursor window holds about 2MB, and a row that does not fit in it cannot be read. The first
+ * chunk of a note's content is kept in the note bodies table, where queries of the note column
+ * read it, and the rest in the note chunks table, numbered from 1. A note that fits in one chunk,
+ * as nearly all do, has no rows in the chunks table. The whole content is read one chunk at a
+ * time, with a statement rather than a cursor, so reading it takes memory for one chunk however
+ * long the note is.
+ */
+public class NoteBodies {
+
+    /**
+     * The table that holds the chunks of the notes after their first.
+     */
+    static final String CHUNKS_TABLE_NAME = "note_chunks";
+
+    /**
+     * The column of the chunks table that holds the _ID of the chunk's note.
+     */
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+    /**
+     * The column of the chunks table that holds the chunk's place in the note, from 1.
+     */
+    static final String COLUMN_NAME_SEQUENCE = "seq";
+
+    /**
+     * The column of the chunks table that holds the chunk's text.
+     */
+    static final String COLUMN_NAME_DATA = "data";
+
+    /**
+     * The table that holds the chunks of content that is being streamed into a note, until the
+     * stream ends and the content replaces the note's. Its chunks are numbered from 0.
+     */
+    static final String UPLOADS_TABLE_NAME = "note_uploads";
+
+    /**
+     * The column of the uploads table that holds the ID of the chunk's upload.
+     */
+    static final String COLUMN_NAME_UPLOAD_ID = "upload_id";
+
+    // The ID of the next upload. The uploads table is emptied when the database is opened, so
+    // IDs need only be unique within the process.
+    private static final AtomicLong sNextUploadId = new AtomicLong();
+
+    // This class cannot be instantiated
+    private NoteBodies() {
+    }
+
+    /**
+     * Creates the chunks table.
+     */
+    static void createChunksTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHUNKS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SEQUENCE + " INTEGER NOT NULL,"
+                + COLUMN_NAME_DATA + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_NOTE_ID + "," + COLUMN_NAME_SEQUENCE + ")"
+                + ");");
+    }
+
+    /**
+     * Creates the uploads table.
+     */
+    static void createUploadsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + UPLOADS_TABLE_NAME + " ("
+                + COLUMN_NAME_UPLOAD_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SEQUENCE + " INTEGER NOT NULL,"
+                + COLUMN_NAME_DATA + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_UPLOAD_ID + "," + COLUMN_NAME_SEQUENCE + ")"
+                + ");");
+    }
+
+    /**
+     * Deletes the uploads that a process left when it stopped before their streams ended.
+     */
+    static void deleteUploads(SQLiteDatabase db) {
+        db.delete(UPLOADS_TABLE_NAME, null, null);
+    }
+
+    /**
+     * Splits the bodies that are longer than one chunk, for a database whose bodies were stored
+     * whole. The length column of the bodies table must already be set.
+     */
+    static void splitLongBodies(SQLiteDatabase db) {
+        int chunk = NotePad.Notes.NOTE_CHUNK_LENGTH;
+        db.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + "," + COLUMN_NAME_SEQUENCE + "," + COLUMN_NAME_DATA + ")"
+                + " WITH RECURSIVE seqs(n) AS (SELECT 1 UNION ALL SELECT n+1 FROM seqs"
+                + " WHERE n < (SELECT MAX(" + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ") FROM "
+                + NotePadProvider.NOTE_BODIES_TABLE_NAME + ")/" + chunk + ")"
+                + " SELECT " + NotePadProvider.NOTE_BODIES_NOTE_ID + ", n, substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", n*" + chunk + "+1, " + chunk + ")"
+                + " FROM " + NotePadProvider.NOTE_BODIES_TABLE_NAME + " JOIN seqs"
+                + " ON n*" + chunk + " < " + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
+        db.execSQL("UPDATE " + NotePadProvider.NOTE_BODIES_TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_NOTE + "=substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + chunk + ")"
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " > " + chunk);
+    }
+
+    /**
+     * Returns the first chunk of a note's content, which is what queries of the note column
+     * return and what the full-text index holds.
+     *
+     * @param body The note's content, may be null.
+     */
+    static String firstChunk(String body) {
+        if (body == null || body.length() <= NotePad.Notes.NOTE_CHUNK_LENGTH) {
+            return body;
+        }
+        return body.substring(0, chunkEnd(body, 0, body.codePointCount(0, body.length())));
+    }
+
+    /**
+     * Stores a note's content, replacing the content it had.
+     */
+    static void write(SQLiteDatabase db, long noteId, String body) {
+        BodyWriter writer = new BodyWriter(db);
+        try {
+            writer.write(noteId, body);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the whole content of a note to a stream.
+     *
+     * The content is written as it was at one point in time, even if the note is written
+     * meanwhile. A note of one chunk, which most are, is read with one statement, together
+     * with its length. The chunks of a longer note are read into memory in a transaction, so
+     * that no write can change the note between two of them, and are written to the stream
+     * once the transaction has ended: the stream is often a pipe to another process, and a
+     * slow reader must not hold up the writes of the app.
+     *
+     * @return false if the note does not exist.
+     */
+    static boolean copy(SQLiteDatabase db, long noteId, Writer out) throws IOException {
+        Cursor c = db.rawQuery("SELECT IFNULL(" + NotePad.Notes.COLUMN_NAME_NOTE + ",''),"
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " FROM "
+                + NotePadProvider.NOTE_BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.NOTE_BODIES_NOTE_ID + "=" + noteId, null);
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            if (c.getLong(1) <= NotePad.Notes.NOTE_CHUNK_LENGTH) {
+                out.write(c.getString(0));
+                return true;
+            }
+        } finally {
+            c.close();
+        }
+
+        SQLiteStatement first = db.compileStatement("SELECT IFNULL("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ",'') FROM "
+                + NotePadProvider.NOTE_BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.NOTE_BODIES_NOTE_ID + "=?");
+        SQLiteStatement next = db.compileStatement("SELECT " + COLUMN_NAME_DATA + " FROM "
+                + CHUNKS_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID + "=? AND "
+                + COLUMN_NAME_SEQUENCE + "=?");
+        List<String> chunks = new ArrayList<String>();
+        db.beginTransactionNonExclusive();
+        try {
+            // The note may have been deleted or shortened since its length was read
+            first.bindLong(1, noteId);
+            String chunk = readString(first);
+            for (int seq = 1; chunk != null; seq++) {
+                chunks.add(chunk);
+                next.bindLong(1, noteId);
+                next.bindLong(2, seq);
+                chunk = readString(next);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            first.close();
+            next.close();
+        }
+
+        if (chunks.isEmpty()) {
+            return false;
+        }
+        for (String chunk : chunks) {
+            out.write(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a note's new content from a stream into the uploads table, one chunk at a time.
+     * Each chunk is written in its own short transaction, so a slow stream never holds the
+     * database's write lock; the content replaces the note's when the upload is committed.
+     * If reading fails, the chunks read so far are deleted.
+     */
+    static Upload upload(SQLiteDatabase db, Reader in) throws IOException {
+        Upload upload = new Upload(db, sNextUploadId.incrementAndGet());
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + UPLOADS_TABLE_NAME + " ("
+                + COLUMN_NAME_UPLOAD_ID + "," + COLUMN_NAME_SEQUENCE + "," + COLUMN_NAME_DATA
+                + ") VALUES (?,?,?)");
+        boolean done = false;
+        try {
+            StringBuilder chunk = new StringBuilder();
+            int chunkLength = 0;
+            int seq = 0;
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    chunk.append(buffer[i]);
+
+                    // The high half of a surrogate pair is counted with the low half
+                    if (!Character.isHighSurrogate(buffer[i])
+                            && ++chunkLength == NotePad.Notes.NOTE_CHUNK_LENGTH) {
+                        upload.insert(insert, seq++, chunk);
+                        chunk.setLength(0);
+                        chunkLength = 0;
+                    }
+                }
+            }
+
+            // The first chunk is always stored, even if the content is empty
+            if (chunkLength > 0 || seq == 0) {
+                upload.insert(insert, seq, chunk);
+            }
+            done = true;
+            return upload;
+        } finally {
+            insert.close();
+            if (!done) {
+                upload.discard();
+            }
+        }
+    }
+
+    // Runs a query that returns one string, returning null if it returns no rows.
+    private static String readString(SQLiteStatement statement) {
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Returns the end of the chunk that starts at the given index, given the number of characters
+     * from there to the end of the text. Characters are counted as code points, as SQLite counts
+     * them, so a chunk never ends inside a surrogate pair.
+     */
+    private static int chunkEnd(String text, int start, int remaining) {
+        return text.offsetByCodePoints(start, Math.min(remaining, NotePad.Notes.NOTE_CHUNK_LENGTH));
+    }
+
+    /**
+     * The content of a note that has been read into the uploads table.
+     */
+    static class Upload {
+        private final SQLiteDatabase mDb;
+        private final long mId;
+        private long mLength;
+
+        private Upload(SQLiteDatabase db, long id) {
+            mDb = db;
+            mId = id;
+        }
+
+        private void insert(SQLiteStatement insert, int seq, CharSequence chunk) {
+            insert.bindLong(1, mId);
+            insert.bindLong(2, seq);
+            insert.bindString(3, chunk.toString());
+            insert.executeInsert();
+            mLength += Character.codePointCount(chunk, 0, chunk.length());
+        }
+
+        /**
+         * Replaces the content of a note with the uploaded content, and deletes the upload. The
+         * caller must hold a transaction, so that readers see either the old content or the new.
+         *
+         * @return false if the note does not exist.
+         */
+        boolean commit(long noteId) {
+            if (DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                    NotePad.Notes._ID + "=" + noteId) == 0) {
+                return false;
+            }
+
+            mDb.execSQL("DELETE FROM " + CHUNKS_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID + "=?",
+                    new Object[] { noteId });
+            mDb.execSQL("INSERT OR REPLACE INTO " + NotePadProvider.NOTE_BODIES_TABLE_NAME + " ("
+                    + NotePadProvider.NOTE_BODIES_NOTE_ID + "," + NotePad.Notes.COLUMN_NAME_NOTE
+                    + "," + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ")"
+                    + " SELECT ?," + COLUMN_NAME_DATA + ",? FROM " + UPLOADS_TABLE_NAME
+                    + " WHERE " + COLUMN_NAME_UPLOAD_ID + "=? AND " + COLUMN_NAME_SEQUENCE + "=0",
+                    new Object[] { noteId, mLength, mId });
+            mDb.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " ("
+                    + COLUMN_NAME_NOTE_ID + "," + COLUMN_NAME_SEQUENCE + "," + COLUMN_NAME_DATA + ")"
+                    + " SELECT ?," + COLUMN_NAME_SEQUENCE + "," + COLUMN_NAME_DATA
+                    + " FROM " + UPLOADS_TABLE_NAME
+                    + " WHERE " + COLUMN_NAME_UPLOAD_ID + "=? AND " + COLUMN_NAME_SEQUENCE + ">0",
+                    new Object[] { noteId, mId });
+            discard();
+            return true;
+        }
+
+        /**
+         * Deletes the upload, if it has not been committed.
+         */
+        void discard() {
+            mDb.delete(UPLOADS_TABLE_NAME, COLUMN_NAME_UPLOAD_ID + "=" + mId, null);
+        }
+    }
+
+    /**
+     * Stores the contents of notes with statements that are compiled once, for callers that
+     * write many notes in one transaction. The writer must be closed when done.
+     */
+    static class BodyWriter {
+        private final SQLiteStatement mReplaceBody;
+        private final SQLiteStatement mDeleteChunks;
+        private final SQLiteStatement mInsertChunk;
+
+        BodyWriter(SQLiteDatabase db) {
+            mReplaceBody = db.compileStatement("INSERT OR REPLACE INTO "
+                    + NotePadProvider.NOTE_BODIES_TABLE_NAME + " ("
+                    + NotePadProvider.NOTE_BODIES_NOTE_ID + ","
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                    + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ") VALUES (?,?,?)");
+            mDeleteChunks = db.compileStatement("DELETE FROM " + CHUNKS_TABLE_NAME
+                    + " WHERE " + COLUMN_NAME_NOTE_ID + "=?");
+            mInsertChunk = db.compileStatement("INSERT INTO " + CHUNKS_TABLE_NAME + " ("
+                    + COLUMN_NAME_NOTE_ID + "," + COLUMN_NAME_SEQUENCE + "," + COLUMN_NAME_DATA
+                    + ") VALUES (?,?,?)");
+        }
+
+        /**
+         * Stores a note's content, replacing the content it had. The caller must hold a
+         * transaction, so that readers never see a note with some of its chunks.
+         */
+        void write(long noteId, String body) {
+            mDeleteChunks.bindLong(1, noteId);
+            mDeleteChunks.executeUpdateDelete();
+
+            mReplaceBody.bindLong(1, noteId);
+            if (body == null) {
+                mReplaceBody.bindNull(2);
+                mReplaceBody.bindLong(3, 0);
+                mReplaceBody.executeInsert();
+                return;
+            }
+
+            int remaining = body.codePointCount(0, body.length());
+            int end = chunkEnd(body, 0, remaining);
+            mReplaceBody.bindString(2, body.substring(0, end));
+            mReplaceBody.bindLong(3, remaining);
+            mReplaceBody.executeInsert();
+            remaining -= NotePad.Notes.NOTE_CHUNK_LENGTH;
+
+            for (int seq = 1; remaining > 0; seq++) {
+                int start = end;
+                end = chunkEnd(body, start, remaining);
+                mInsertChunk.bindLong(1, noteId);
+                mInsertChunk.bindLong(2, seq);
+                mInsertChunk.bindString(3, body.substring(start, end));
+                mInsertChunk.executeInsert();
+                remaining -= NotePad.Notes.NOTE_CHUNK_LENGTH;
+            }
+        }
+
+        void close() {
+            mReplaceBody.close();
+            mDeleteChunks.close();
+            mInsertChunk.close();
+        }
+    }
+}
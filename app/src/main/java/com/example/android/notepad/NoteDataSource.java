@@ -16,11 +16,23 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,6 +41,7 @@ import java.util.List;
  * 提供统一的数据查询和操作接口
  */
 public class NoteDataSource {
+    private static final String TAG = "NoteDataSource";
     private ContentResolver contentResolver;
 
     public NoteDataSource(ContentResolver contentResolver) {
@@ -49,6 +62,7 @@ public class NoteDataSource {
                         NotePad.Notes._ID,
                         NotePad.Notes.COLUMN_NAME_TITLE,
                         NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
                         NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                         NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                         NotePad.Notes.COLUMN_NAME_CATEGORY_ID
@@ -64,7 +78,7 @@ public class NoteDataSource {
                     Note note = new Note();
                     note.setId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
                     note.setTitle(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE)));
-                    note.setContent(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE)));
+                    note.setContent(readContent(contentResolver, cursor));
                     note.setCreateTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CREATE_DATE)));
                     note.setModifyTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
                     note.setCategoryId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)));
@@ -78,6 +92,75 @@ public class NoteDataSource {
         return notes;
     }
 
+    /**
+     * 获取笔记总数，从笔记计数器汇总，不需要读取笔记本身
+     * @return 笔记数量
+     */
+    public int getNotesCount() {
+        return CategoryDataSource.readNoteCount(contentResolver.query(
+                NotePad.NoteCounters.CONTENT_URI,
+                new String[]{NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT},
+                null,
+                null,
+                null
+        ));
+    }
+
+    /**
+     * 打开所有笔记的JSON流，格式与{@link JsonSerializer#serializeNotes}相同
+     * Provider按页查询笔记并边查边写，不会把所有笔记读入内存
+     * @return JSON流，UTF-8编码，由调用者关闭
+     * @throws IOException 如果无法打开流
+     */
+    public InputStream openNotesJson() throws IOException {
+        AssetFileDescriptor afd = contentResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.STREAM_TYPE_JSON, null);
+        if (afd == null) {
+            throw new FileNotFoundException("无法打开笔记的JSON流");
+        }
+        return afd.createInputStream();
+    }
+
+    /**
+     * 读取游标当前行笔记的完整内容
+     * 查询最多返回内容的前NOTE_CHUNK_LENGTH个字符，更长的笔记从笔记URI的输入流中读取
+     * @param contentResolver 内容解析器
+     * @param cursor 包含_ID、note和note_length列的游标
+     * @return 笔记内容
+     */
+    public static String readContent(ContentResolver contentResolver, Cursor cursor) {
+        String content = cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE));
+        long length = cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH));
+        if (length <= NotePad.Notes.NOTE_CHUNK_LENGTH) {
+            return content;
+        }
+
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
+        StringBuilder text = new StringBuilder((int) length);
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(contentResolver.openInputStream(noteUri), "UTF-8");
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } catch (IOException e) {
+            Log.e(TAG, "读取笔记内容失败: " + noteUri, e);
+            return content;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // 忽略关闭异常
+                }
+            }
+        }
+    }
+
     /**
      * 根据ID获取单个笔记
      * @param id 笔记ID
@@ -92,6 +175,7 @@ public class NoteDataSource {
                         NotePad.Notes._ID,
                         NotePad.Notes.COLUMN_NAME_TITLE,
                         NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
                         NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                         NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                         NotePad.Notes.COLUMN_NAME_CATEGORY_ID
@@ -108,7 +192,7 @@ public class NoteDataSource {
                     note = new Note();
                     note.setId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
                     note.setTitle(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE)));
-                    note.setContent(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE)));
+                    note.setContent(readContent(contentResolver, cursor));
                     note.setCreateTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CREATE_DATE)));
                     note.setModifyTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
                     note.setCategoryId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)));
@@ -127,14 +211,28 @@ public class NoteDataSource {
      * @return 新插入笔记的URI，如果失败返回null
      */
     public Uri insertNote(Note note) {
+        return contentResolver.insert(NotePad.Notes.CONTENT_URI, getInsertValues(note));
+    }
+
+    /**
+     * 创建插入笔记的批处理操作，与{@link #applyBatch(ArrayList)}配合使用
+     * @param note 笔记对象
+     * @return 插入操作
+     */
+    public ContentProviderOperation newInsertOperation(Note note) {
+        return ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(getInsertValues(note))
+                .build();
+    }
+
+    private ContentValues getInsertValues(Note note) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_TITLE, note.getTitle());
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.getContent());
         values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, note.getCreateTime());
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, note.getModifyTime());
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, note.getCategoryId());
-
-        return contentResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        return values;
     }
 
     /**
@@ -143,14 +241,53 @@ public class NoteDataSource {
      * @return 更新的记录数
      */
     public int updateNote(Note note) {
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, note.getId());
+        
+        return contentResolver.update(noteUri, getUpdateValues(note), null, null);
+    }
+
+    /**
+     * 创建更新笔记的批处理操作，与{@link #applyBatch(ArrayList)}配合使用
+     * @param note 要更新的笔记对象
+     * @return 更新操作
+     */
+    public ContentProviderOperation newUpdateOperation(Note note) {
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, note.getId());
+        return ContentProviderOperation.newUpdate(noteUri)
+                .withValues(getUpdateValues(note))
+                .build();
+    }
+
+    private ContentValues getUpdateValues(Note note) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_TITLE, note.getTitle());
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.getContent());
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, note.getModifyTime());
+        return values;
+    }
 
-        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, note.getId());
-        
-        return contentResolver.update(noteUri, values, null, null);
+    /**
+     * 在一个事务中执行一批笔记操作，全部成功或全部不生效，结束时只发送一次变更通知
+     * @param operations 批处理操作
+     * @return 每个操作的结果
+     */
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        return contentResolver.applyBatch(NotePad.AUTHORITY, operations);
+    }
+
+    /**
+     * 在一条语句中设置或切换一组笔记的待办状态，只发送一次变更通知
+     * @param contentResolver 内容解析器
+     * @param ids 笔记ID
+     * @param status 新状态，为null时切换每个笔记的状态
+     * @return 包含更新的记录数和其中已完成笔记数的结果
+     */
+    public static Bundle setStatus(ContentResolver contentResolver, long[] ids, Integer status) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(NotePad.Notes.KEY_NOTE_IDS, ids);
+        return contentResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_SET_STATUS,
+                status == null ? null : status.toString(), extras);
     }
 
     /**
@@ -163,6 +300,62 @@ public class NoteDataSource {
         return contentResolver.delete(noteUri, null, null);
     }
 
+    /**
+     * 开始一次导入。笔记用{@link #stageImport}分批暂存，最后用{@link #finishImport}
+     * 在一个事务中合并，或用{@link #discardImport}丢弃
+     * @return 导入ID
+     */
+    public long beginImport() {
+        Bundle result = contentResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_BEGIN_IMPORT, null, null);
+        return result.getLong(NotePad.Notes.KEY_IMPORT_ID);
+    }
+
+    /**
+     * 暂存一批要导入的笔记，暂存的笔记在合并之前不可见
+     * 笔记的ID是导出时的ID，合并时与已有笔记的ID匹配
+     * @param importId 导入ID
+     * @param notes 笔记
+     */
+    public void stageImport(long importId, List<Note> notes) {
+        ContentValues[] values = new ContentValues[notes.size()];
+        for (int i = 0; i < values.length; i++) {
+            Note note = notes.get(i);
+            values[i] = getInsertValues(note);
+            values[i].put(NotePad.Notes._ID, note.getId());
+        }
+        contentResolver.bulkInsert(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_IMPORT_URI_BASE, importId), values);
+    }
+
+    /**
+     * 把暂存的笔记合并到笔记中。按ID匹配时，ID已存在的笔记更新标题、内容和修改时间，其余的作为新笔记插入；
+     * 按内容匹配时，标题和内容与已有笔记相同的笔记被跳过，其余的作为新笔记插入。
+     * 两种方式下已有的相同笔记都不会被重写，重复导入同一文件不会改变任何笔记
+     * @param importId 导入ID
+     * @param matchContent 是否按内容而不是按ID匹配已有笔记
+     * @return 结果，{@link NotePad.Notes#KEY_COUNT}为导入的笔记数，
+     * {@link NotePad.Notes#KEY_UPDATED_COUNT}为其中更新已有笔记的数量，
+     * {@link NotePad.Notes#KEY_SKIPPED_COUNT}为其中被跳过的数量
+     */
+    public Bundle finishImport(long importId, boolean matchContent) {
+        Bundle extras = new Bundle();
+        extras.putString(NotePad.Notes.KEY_IMPORT_MATCH, matchContent
+                ? NotePad.Notes.IMPORT_MATCH_CONTENT : NotePad.Notes.IMPORT_MATCH_ID);
+        return contentResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_FINISH_IMPORT, Long.toString(importId), extras);
+    }
+
+    /**
+     * 丢弃暂存的笔记
+     * @param importId 导入ID
+     */
+    public void discardImport(long importId) {
+        contentResolver.delete(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_IMPORT_URI_BASE, importId),
+                null, null);
+    }
+
     /**
      * 根据分类ID获取笔记数据
      * @param categoryId 分类ID
@@ -178,6 +371,7 @@ public class NoteDataSource {
                         NotePad.Notes._ID,
                         NotePad.Notes.COLUMN_NAME_TITLE,
                         NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
                         NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                         NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                         NotePad.Notes.COLUMN_NAME_CATEGORY_ID
@@ -193,7 +387,7 @@ public class NoteDataSource {
                     Note note = new Note();
                     note.setId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
                     note.setTitle(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE)));
-                    note.setContent(cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE)));
+                    note.setContent(readContent(contentResolver, cursor));
                     note.setCreateTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CREATE_DATE)));
                     note.setModifyTime(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
                     note.setCategoryId(cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)));
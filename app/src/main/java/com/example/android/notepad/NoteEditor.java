@@ -73,6 +73,7 @@ public class NoteEditor extends Activity {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
             NotePad.Notes.COLUMN_NAME_STATUS,
             NotePad.Notes.COLUMN_NAME_CATEGORY_ID
     };
@@ -93,10 +94,12 @@ public class NoteEditor extends Activity {
     private CheckBox mTodoCheckBox;
     private Spinner mCategorySpinner;
     private Button mSaveButton;
-    private CategoryDataSource mCategoryDataSource;
     private long mSelectedCategoryId;
     private String mOriginalContent;
 
+    // The note text as it was last read from the provider
+    private String mSavedNote;
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
@@ -276,9 +279,6 @@ public class NoteEditor extends Activity {
                 saveNote();
             }
         });
-        
-        // Initialize category data source
-        mCategoryDataSource = new CategoryDataSource(this);
 
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
@@ -305,17 +305,25 @@ public class NoteEditor extends Activity {
          * mCursor is initialized, since onCreate() always precedes onResume for any running
          * process. This tests that it's not null, since it should always contain data.
          */
+        List<Category> categories;
         if (mCursor != null) {
-            // Replace deprecated requery() with modern approach
+            // Replace deprecated requery() with modern approach. The note and the categories
+            // for the spinner are loaded with one call to the provider.
             try {
                 mCursor.close();
-                mCursor = getContentResolver().query(
+                mCursor = null;
+                BatchQuery batch = new BatchQuery();
+                int noteQuery = batch.add(
                     mUri,         // The URI that gets multiple notes from the provider.
                     PROJECTION,   // A projection that returns the note ID and note content for each note.
                     null,         // No "where" clause selection criteria.
                     null,         // No "where" clause selection values.
                     null          // Use the default sort order (modification date, descending)
                 );
+                int categoriesQuery = CategoryDataSource.addAllCategoriesQuery(batch);
+                Cursor[] results = batch.run(getContentResolver());
+                mCursor = results[noteQuery];
+                categories = CategoryDataSource.readCategories(results[categoriesQuery]);
                 
                 if (mCursor != null) {
                     mCursor.moveToFirst();
@@ -348,10 +356,10 @@ public class NoteEditor extends Activity {
              * the text cursor's position.
              */
             if (mCursor != null && !mCursor.isClosed()) {
-                // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-                // the text cursor's position.
-                int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                String note = mCursor.getString(colNoteIndex);
+                // Gets the note text and puts it in the TextView, but doesn't change the text
+                // cursor's position. A long note is read from the provider in chunks.
+                String note = NoteDataSource.readContent(getContentResolver(), mCursor);
+                mSavedNote = note;
                 mText.setTextKeepState(note);
 
                 // Stores the original note text, to allow the user to revert changes.
@@ -375,7 +383,7 @@ public class NoteEditor extends Activity {
                 if (colCategoryIndex >= 0) {
                     categoryId = mCursor.getLong(colCategoryIndex);
                 }
-                setupCategorySpinner(categoryId);
+                setupCategorySpinner(categories, categoryId);
             }
         /*
          * Something is wrong. The Cursor should always contain data. Report an error in the
@@ -458,18 +466,16 @@ public class NoteEditor extends Activity {
 
     /**
      * Setup category spinner with all available categories
+     * @param categories all of the categories
      * @param selectedCategoryId the currently selected category ID
      */
-    private void setupCategorySpinner(long selectedCategoryId) {
-        // Get all categories
-        List<Category> categories = mCategoryDataSource.getAllCategories();
-        
+    private void setupCategorySpinner(List<Category> categories, long selectedCategoryId) {
         // Create lists for spinner
         List<String> categoryNames = new ArrayList<>();
         List<Long> categoryIds = new ArrayList<>();
         
         // Add default option
-        categoryNames.add("无分类");
+        categoryNames.add(getString(R.string.no_category));
         categoryIds.add(0L);
         
         // Add all categories
@@ -542,10 +548,8 @@ public class NoteEditor extends Activity {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
         String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        if (currentNote.equals(mSavedNote)) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges imported notes into the notes table with a few statements, instead of looking each
+ * note up and then updating or inserting it.
+ *
+ * The notes of an import are staged in the imports table, a batch at a time, and then merged
+ * in one transaction. A staged note whose _ID is a note's is merged into that note, and the
+ * others are inserted with new IDs; or, when notes are matched by content, a staged note with
+ * the same content hash as a note is skipped, and the others are inserted. Either way a note
+ * that is already there is found through an index and skipped without being written, so
+ * importing the same notes again costs a few lookups. The notes' contents are split into chunks by SQL, as
+ * {@link NoteBodies#splitLongBodies} does; only the full-text index is written a note at a
+ * time, since its text is segmented in Java.
+ */
+class NoteImports {
+
+    /**
+     * The table that holds the staged notes until their import is merged or deleted.
+     */
+    static final String TABLE_NAME = "note_imports";
+
+    /**
+     * The column that holds the ID of the note's import.
+     */
+    static final String COLUMN_NAME_IMPORT_ID = "import_id";
+
+    /**
+     * The column that holds the _ID the note was imported with.
+     */
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+    /**
+     * The column that holds the _ID of the note that the staged note is merged into. It is
+     * set during the merge.
+     */
+    static final String COLUMN_NAME_TARGET_ID = "target_id";
+
+    // The columns of a staged note, other than its import. The _ID is the imported one.
+    private static final String[] STAGED_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+    };
+
+    // The ID of the next import. The imports table is emptied when the database is opened, so
+    // IDs need only be unique within the process.
+    private static final AtomicLong sNextImportId = new AtomicLong();
+
+    // This class cannot be instantiated
+    private NoteImports() {
+    }
+
+    /**
+     * Creates the imports table.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_IMPORT_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_NOTE_ID + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 0,"
+                + COLUMN_NAME_TARGET_ID + " INTEGER,"
+                + ContentHashes.COLUMN_NAME_CONTENT_HASH + " INTEGER"
+                + ");");
+        db.execSQL("CREATE INDEX note_imports_target_idx ON " + TABLE_NAME + " ("
+                + COLUMN_NAME_IMPORT_ID + "," + COLUMN_NAME_TARGET_ID
+                + ");");
+    }
+
+    /**
+     * Deletes the imports that a process left when it stopped before merging them.
+     */
+    static void deleteImports(SQLiteDatabase db) {
+        db.delete(TABLE_NAME, null, null);
+    }
+
+    /**
+     * Returns the ID of a new import.
+     */
+    static long newImportId() {
+        return sNextImportId.incrementAndGet();
+    }
+
+    /**
+     * Stages notes for an import, in one transaction, with their content hashes.
+     *
+     * @param values The notes, each with any of the _ID it was exported with, the title,
+     * content, creation and modification dates, and category ID.
+     * @throws IllegalArgumentException if a note has another column.
+     */
+    static void stage(SQLiteDatabase db, long importId, ContentValues[] values) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(TABLE_NAME).append(" (")
+                .append(COLUMN_NAME_IMPORT_ID).append(',').append(COLUMN_NAME_NOTE_ID);
+        for (int i = 1; i < STAGED_COLUMNS.length; i++) {
+            sql.append(',').append(STAGED_COLUMNS[i]);
+        }
+        sql.append(',').append(ContentHashes.COLUMN_NAME_CONTENT_HASH).append(") VALUES (?");
+        for (int i = 0; i < STAGED_COLUMNS.length; i++) {
+            sql.append(",?");
+        }
+        sql.append(",?)");
+
+        db.beginTransactionNonExclusive();
+        SQLiteStatement insert = db.compileStatement(sql.toString());
+        try {
+            for (ContentValues row : values) {
+                insert.clearBindings();
+                insert.bindLong(1, importId);
+                int bound = 0;
+                for (int i = 0; i < STAGED_COLUMNS.length; i++) {
+                    if (row.containsKey(STAGED_COLUMNS[i])) {
+                        DatabaseUtils.bindObjectToProgram(insert, i + 2,
+                                row.get(STAGED_COLUMNS[i]));
+                        bound++;
+                    }
+                }
+                if (bound < row.size()) {
+                    throw new IllegalArgumentException("Unknown column in " + row);
+                }
+                insert.bindLong(STAGED_COLUMNS.length + 2, ContentHashes.of(
+                        row.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                        row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the staged notes of an import.
+     *
+     * @return The number of notes deleted.
+     */
+    static int delete(SQLiteDatabase db, long importId) {
+        return db.delete(TABLE_NAME, COLUMN_NAME_IMPORT_ID + "=" + importId, null);
+    }
+
+    /**
+     * Merges the staged notes of an import into the notes, and deletes them from the imports
+     * table. The caller must hold a transaction.
+     *
+     * When notes are matched by _ID, a note that is merged into an existing note replaces its
+     * title, content and modification date, unless it has the same title and content; if
+     * several are merged into the same note, the last one staged does. A note whose _ID is
+     * not found is skipped if a note has the same title and content. When notes are matched
+     * by content, a note with the same title and content as an existing note, or as a note
+     * staged before it, is skipped, and the others are inserted as new notes.
+     *
+     * @param matchContent Whether notes are matched by content instead of by _ID.
+     * @return The number of staged notes, the number of those that were merged into existing
+     * notes, and the number of those that were skipped.
+     */
+    static int[] merge(SQLiteDatabase db, long importId, boolean matchContent) {
+        String ofImport = COLUMN_NAME_IMPORT_ID + "=" + importId;
+        int count = (int) DatabaseUtils.queryNumEntries(db, TABLE_NAME, ofImport);
+        String hash = ContentHashes.COLUMN_NAME_CONTENT_HASH;
+
+        int updated = 0;
+        if (matchContent) {
+            // Skips the notes that exist, looking each up in the content hash index, and keeps
+            // only the first one staged with each content
+            db.execSQL("DELETE FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND EXISTS (SELECT 1 FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.TABLE_NAME + "."
+                    + hash + "=" + TABLE_NAME + "." + hash + ")");
+            db.execSQL("DELETE FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND rowid NOT IN (SELECT MIN(rowid) FROM "
+                    + TABLE_NAME + " WHERE " + ofImport + " GROUP BY " + hash + ")");
+        } else {
+            // Finds the notes that exist, keeps only the last one staged for each, and skips
+            // it if the note already has its content. A note that is not found is skipped if
+            // another note has its content, as it does when the import was already merged
+            // and the note was inserted with a new ID.
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_TARGET_ID + "="
+                    + COLUMN_NAME_NOTE_ID
+                    + " WHERE " + ofImport + " AND " + COLUMN_NAME_NOTE_ID + " IN (SELECT "
+                    + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + ")");
+            db.execSQL("DELETE FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND " + COLUMN_NAME_TARGET_ID + " IS NOT NULL"
+                    + " AND rowid NOT IN (SELECT MAX(rowid) FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND " + COLUMN_NAME_TARGET_ID + " IS NOT NULL"
+                    + " GROUP BY " + COLUMN_NAME_TARGET_ID + ")");
+            db.execSQL("DELETE FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND EXISTS (SELECT 1 FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.TABLE_NAME + "."
+                    + NotePad.Notes._ID + "=" + TABLE_NAME + "." + COLUMN_NAME_TARGET_ID
+                    + " AND " + NotePad.Notes.TABLE_NAME + "." + hash + "=" + TABLE_NAME + "."
+                    + hash + ")");
+            db.execSQL("DELETE FROM " + TABLE_NAME
+                    + " WHERE " + ofImport + " AND " + COLUMN_NAME_TARGET_ID + " IS NULL"
+                    + " AND EXISTS (SELECT 1 FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes.TABLE_NAME + "." + hash + "=" + TABLE_NAME + "." + hash + ")");
+
+            // Updates the existing notes
+            updated = executeUpdateDelete(db, "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + "="
+                    + staged(importId, NotePad.Notes.COLUMN_NAME_TITLE) + ","
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "="
+                    + staged(importId, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) + ","
+                    + hash + "=" + staged(importId, hash)
+                    + " WHERE " + NotePad.Notes._ID + " IN (SELECT " + COLUMN_NAME_TARGET_ID
+                    + " FROM " + TABLE_NAME + " WHERE " + ofImport + ")");
+        }
+        int skipped = count - (int) DatabaseUtils.queryNumEntries(db, TABLE_NAME, ofImport);
+
+        // Inserts the others with IDs after the largest one, in the order they were staged. A
+        // category that does not exist is replaced with none.
+        long maxId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + NotePad.Notes._ID
+                + "),0) FROM " + NotePad.Notes.TABLE_NAME, null);
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_TARGET_ID + "=" + maxId
+                + "+rowid WHERE " + ofImport + " AND " + COLUMN_NAME_TARGET_ID + " IS NULL");
+        db.execSQL("INSERT INTO " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + ","
+                + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ","
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                + hash + ")"
+                + " SELECT " + COLUMN_NAME_TARGET_ID + ","
+                + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ","
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                + "CASE WHEN " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IN (SELECT "
+                + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME + ")"
+                + " THEN " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " ELSE 0 END,"
+                + hash
+                + " FROM " + TABLE_NAME
+                + " WHERE " + ofImport + " AND " + COLUMN_NAME_TARGET_ID + ">" + maxId
+                + " ORDER BY rowid");
+
+        // Stores the contents: the first chunk in the bodies table and the rest in the chunks
+        // table, as NoteBodies.BodyWriter does
+        int chunk = NotePad.Notes.NOTE_CHUNK_LENGTH;
+        db.execSQL("INSERT OR REPLACE INTO " + NotePadProvider.NOTE_BODIES_TABLE_NAME + " ("
+                + NotePadProvider.NOTE_BODIES_NOTE_ID + ","
+                + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ")"
+                + " SELECT " + COLUMN_NAME_TARGET_ID + ","
+                + "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ",1," + chunk + "),"
+                + "IFNULL(length(" + NotePad.Notes.COLUMN_NAME_NOTE + "),0)"
+                + " FROM " + TABLE_NAME + " WHERE " + ofImport);
+        db.execSQL("DELETE FROM " + NoteBodies.CHUNKS_TABLE_NAME
+                + " WHERE " + NoteBodies.COLUMN_NAME_NOTE_ID + " IN (SELECT "
+                + COLUMN_NAME_TARGET_ID + " FROM " + TABLE_NAME + " WHERE " + ofImport + ")");
+        db.execSQL("INSERT INTO " + NoteBodies.CHUNKS_TABLE_NAME + " ("
+                + NoteBodies.COLUMN_NAME_NOTE_ID + "," + NoteBodies.COLUMN_NAME_SEQUENCE + ","
+                + NoteBodies.COLUMN_NAME_DATA + ")"
+                + " WITH RECURSIVE seqs(n) AS (SELECT 1 UNION ALL SELECT n+1 FROM seqs"
+                + " WHERE n < (SELECT MAX(length(" + NotePad.Notes.COLUMN_NAME_NOTE + ")) FROM "
+                + TABLE_NAME + " WHERE " + ofImport + ")/" + chunk + ")"
+                + " SELECT " + COLUMN_NAME_TARGET_ID + ", n, substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", n*" + chunk + "+1, " + chunk + ")"
+                + " FROM " + TABLE_NAME + " JOIN seqs"
+                + " ON n*" + chunk + " < length(" + NotePad.Notes.COLUMN_NAME_NOTE + ")"
+                + " WHERE " + ofImport);
+
+        // Indexes the notes from their titles and first chunks
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_TARGET_ID + ","
+                + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ",1," + chunk + ")"
+                + " FROM " + TABLE_NAME + " WHERE " + ofImport, null);
+        NoteSearchIndex.Writer writer = new NoteSearchIndex.Writer(db);
+        try {
+            while (c.moveToNext()) {
+                writer.index(c.getLong(0), c.getString(1), c.getString(2));
+            }
+        } finally {
+            c.close();
+            writer.close();
+        }
+
+        delete(db, importId);
+        return new int[] { count, updated, skipped };
+    }
+
+    // Returns a subquery of a column of the note staged for the note being updated.
+    private static String staged(long importId, String column) {
+        return "(SELECT " + column + " FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_IMPORT_ID + "=" + importId
+                + " AND " + COLUMN_NAME_TARGET_ID + "=" + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + ")";
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -28,6 +28,12 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "com.google.provider.NotePad";
 
+    /**
+     * The content:// style URL of the provider itself. A change to it is a change to the notes
+     * and the categories together; observers of either are notified.
+     */
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
     // This class cannot be instantiated
     private NotePad() {
     }
@@ -68,6 +74,16 @@ public final class NotePad {
          */
         private static final String PATH_NOTE_ID = "/notes/";
 
+        /**
+         * Path part for the Notes search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the Note import URI
+         */
+        private static final String PATH_IMPORT_ID = "/notes/imports/";
+
         /**
          * 0-relative position of a note ID segment in the path part of a note ID URI
          */
@@ -97,6 +113,47 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * The content URI for a full-text search over the notes. Callers must supply the search
+         * text in the {@link #QUERY_PARAMETER_SEARCH} query parameter.
+         */
+        public static final Uri CONTENT_SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content URI base for the notes staged by an import. Callers append the ID
+         * returned by {@link #METHOD_BEGIN_IMPORT}, and stage the notes with
+         * {@link android.content.ContentResolver#bulkInsert(Uri, android.content.ContentValues[])}
+         * on the URI, with any of the {@link #_ID} the note was exported with, its title,
+         * content, creation and modification dates, and category ID. Deleting the URI discards
+         * the staged notes.
+         */
+        public static final Uri CONTENT_IMPORT_URI_BASE
+            = Uri.parse(SCHEME + AUTHORITY + PATH_IMPORT_ID);
+
+        /**
+         * The query parameter of {@link #CONTENT_SEARCH_URI} that holds the search text. Every
+         * whitespace-separated word of the text must match a word prefix in the note's title or
+         * content. Text with no words to match, such as punctuation, matches the notes whose
+         * title contains it; empty text matches no notes.
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The query parameter that limits a query of {@link #CONTENT_URI}, its todo and normal
+         * sub-directories or {@link #CONTENT_SEARCH_URI} to a page of at most this many notes.
+         * Paged queries are sorted by {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * The query parameter that starts a page after the last note of the previous page. Its
+         * value is the {@link #COLUMN_NAME_MODIFICATION_DATE} and {@link #_ID} of that note,
+         * separated by a comma. Pages are read from an index, so reading the next page costs
+         * the same however far into the notes it is.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
         /**
          * The content Uri pattern for a notes listing for live folders
          */
@@ -118,11 +175,24 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * The MIME type of a stream of the notes of {@link #CONTENT_URI}, or of a sub-directory
+         * or search of it, in the format of the export file. The notes can also be streamed as
+         * text/plain.
+         */
+        public static final String STREAM_TYPE_JSON = "application/json";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of paged queries. Notes that were modified at the same time are
+         * ordered by ID, so that every note has one place in the order.
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id DESC";
+
         /*
          * Column definitions
          */
@@ -134,11 +204,30 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. Queries return at most the first
+         * {@link #NOTE_CHUNK_LENGTH} characters of it; if {@link #COLUMN_NAME_NOTE_LENGTH} is
+         * longer, read the whole content with
+         * {@link android.content.ContentResolver#openInputStream(Uri)} on the note's URI. Long
+         * content can be written with {@link android.content.ContentResolver#openOutputStream(Uri)}
+         * on the note's URI; it replaces the note's content when the stream is closed.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * Column name for the length of the note content, in characters. Only queries can
+         * request this column.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_LENGTH = "note_length";
+
+        /**
+         * The most characters of the note content that a query returns in
+         * {@link #COLUMN_NAME_NOTE}. The content is stored in chunks of this length, so that no
+         * row is too large for a cursor window.
+         */
+        public static final int NOTE_CHUNK_LENGTH = 128 * 1024;
+
         /**
          * Column name for the creation timestamp
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
@@ -163,6 +252,13 @@ public final class NotePad {
          */
         public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
 
+        /**
+         * Column name for the name of the note's category, read from the categories table.
+         * Only queries can request this column; it is null for a note without a category.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_NAME = "category_name";
+
         /**
          * Status value for pending todo items
          */
@@ -172,6 +268,101 @@ public final class NotePad {
          * Status value for completed todo items
          */
         public static final int STATUS_COMPLETED = 1;
+
+        /**
+         * The method name that sets the status of a set of notes, for
+         * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * on {@link #CONTENT_URI}. The notes' IDs are in {@link #KEY_NOTE_IDS}. The arg is the
+         * new status, {@link #STATUS_PENDING} or {@link #STATUS_COMPLETED}, or null to toggle
+         * the status of each note. The notes are changed in one statement, and observers are
+         * notified once. The returned Bundle holds {@link #KEY_COUNT} and
+         * {@link #KEY_COMPLETED_COUNT}.
+         */
+        public static final String METHOD_SET_STATUS = "set_status";
+
+        /**
+         * The IDs of the notes to change
+         * <P>Type: long[]</P>
+         */
+        public static final String KEY_NOTE_IDS = "note_ids";
+
+        /**
+         * The number of notes that were changed
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COUNT = "count";
+
+        /**
+         * The number of the changed notes that are now completed
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COMPLETED_COUNT = "completed_count";
+
+        /**
+         * The method name that begins an import, for
+         * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * on {@link #CONTENT_URI}. The returned Bundle holds the import's ID in
+         * {@link #KEY_IMPORT_ID}, which the notes are staged under with
+         * {@link #CONTENT_IMPORT_URI_BASE}. Staged notes that are not merged are discarded
+         * when the provider next opens its database.
+         */
+        public static final String METHOD_BEGIN_IMPORT = "begin_import";
+
+        /**
+         * The method name that merges the notes staged by an import into the notes, in one
+         * transaction. The arg is the import's ID, and {@link #KEY_IMPORT_MATCH} in the extras
+         * chooses how staged notes are matched with existing ones:
+         * <ul>
+         * <li>{@link #IMPORT_MATCH_ID}, the default: a staged note whose _ID is an existing
+         * note's replaces that note's title, content and modification date, unless they are
+         * already the same, and the others are inserted as new notes, unless a note has the
+         * same title and content.</li>
+         * <li>{@link #IMPORT_MATCH_CONTENT}: a staged note with the same title and content as
+         * an existing note, or as a note staged before it, is skipped, and the others are
+         * inserted as new notes whatever their _ID.</li>
+         * </ul>
+         * Importing the same notes again therefore changes nothing. Observers are notified
+         * once, if any note changed. The returned Bundle holds the number of staged notes in
+         * {@link #KEY_COUNT}, the number of those that replaced existing notes in
+         * {@link #KEY_UPDATED_COUNT}, and the number of those that were skipped in
+         * {@link #KEY_SKIPPED_COUNT}.
+         */
+        public static final String METHOD_FINISH_IMPORT = "finish_import";
+
+        /**
+         * The ID of an import
+         * <P>Type: long</P>
+         */
+        public static final String KEY_IMPORT_ID = "import_id";
+
+        /**
+         * The number of imported notes that replaced existing notes
+         * <P>Type: int</P>
+         */
+        public static final String KEY_UPDATED_COUNT = "updated_count";
+
+        /**
+         * The number of imported notes that were skipped, because they were already there or
+         * another imported note replaced them
+         * <P>Type: int</P>
+         */
+        public static final String KEY_SKIPPED_COUNT = "skipped_count";
+
+        /**
+         * How an import matches its notes with existing ones, for {@link #METHOD_FINISH_IMPORT}
+         * <P>Type: String, {@link #IMPORT_MATCH_ID} or {@link #IMPORT_MATCH_CONTENT}</P>
+         */
+        public static final String KEY_IMPORT_MATCH = "import_match";
+
+        /**
+         * Matches imported notes with existing ones by _ID
+         */
+        public static final String IMPORT_MATCH_ID = "id";
+
+        /**
+         * Matches imported notes with existing ones by title and content
+         */
+        public static final String IMPORT_MATCH_CONTENT = "content";
     }
 
     /**
@@ -210,6 +401,11 @@ public final class NotePad {
          */
         private static final String PATH_CATEGORY_ID = "/categories/";
 
+        /**
+         * Path part for the Categories with note counts URI
+         */
+        private static final String PATH_WITH_COUNTS = "/categories/with_counts";
+
         /**
          * 0-relative position of a category ID segment in the path part of a category ID URI
          */
@@ -234,6 +430,21 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_CATEGORY_ID + "/#");
 
+        /**
+         * The content URI for all of the categories, each with the number of notes in it in the
+         * {@link #COLUMN_NAME_NOTE_COUNT} column. This URI is read-only.
+         */
+        public static final Uri CONTENT_WITH_COUNTS_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_WITH_COUNTS);
+
+        /**
+         * The query parameter of a delete from {@link #CONTENT_URI} or a category's URI that
+         * moves the notes of the deleted categories to the category with this ID. Without it,
+         * the notes are left without a category. Either way the notes are changed in the same
+         * transaction as the delete.
+         */
+        public static final String QUERY_PARAMETER_MOVE_NOTES_TO = "move_notes_to";
+
         /*
          * MIME type definitions
          */
@@ -275,5 +486,202 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.currentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFIED_TIME = "modified_time";
+
+        /**
+         * Column name for the number of notes in the category. Only
+         * {@link #CONTENT_WITH_COUNTS_URI} returns this column.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+    }
+
+    /**
+     * Note counters table contract. The provider keeps one row for every combination of
+     * category and status that has notes, with the number of notes that have it. Counts per
+     * category, per status, or in total are sums over these rows, so they are read in time
+     * proportional to the number of categories rather than the number of notes.
+     */
+    public static final class NoteCounters {
+
+        // This class cannot be instantiated
+        private NoteCounters() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "note_counters";
+
+        /*
+         * URI definitions
+         */
+
+        /**
+         * The scheme part for this provider's URI
+         */
+        private static final String SCHEME = "content://";
+
+        /**
+         * Path part for the Note counters URI
+         */
+        private static final String PATH_NOTE_COUNTERS = "/note_counters";
+
+        /**
+         * The content:// style URL for this table. This URI is read-only; the counters change
+         * with the notes.
+         */
+        public static final Uri CONTENT_URI =  Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_COUNTERS);
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of note counters.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note_counter";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the category id of the counted notes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the todo status of the counted notes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_STATUS = "status";
+
+        /**
+         * Column name for the number of notes with the category and status
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+    }
+
+    /**
+     * Batch query contract. A client that needs the results of several queries calls the
+     * provider once with {@link #METHOD_QUERY}, instead of making one call to the provider for
+     * each query.
+     */
+    public static final class BatchQueries {
+
+        // This class cannot be instantiated
+        private BatchQueries() {}
+
+        /**
+         * The content:// style URL that batch queries are called on
+         */
+        public static final Uri CONTENT_URI = NotePad.CONTENT_URI;
+
+        /**
+         * The method name of a batch query, for
+         * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}.
+         * The extras hold the queries in {@link #KEY_QUERIES}, and the returned Bundle holds
+         * their results in {@link #KEY_RESULTS}.
+         */
+        public static final String METHOD_QUERY = "query_batch";
+
+        /**
+         * The queries of a batch, an ArrayList of Bundles. Each query has a {@link #KEY_URI},
+         * and may have a {@link #KEY_PROJECTION}, {@link #KEY_SELECTION},
+         * {@link #KEY_SELECTION_ARGS} and {@link #KEY_SORT_ORDER}, which are the arguments of
+         * {@link android.content.ContentResolver#query}.
+         */
+        public static final String KEY_QUERIES = "queries";
+
+        /**
+         * The URI of a query
+         * <P>Type: Uri</P>
+         */
+        public static final String KEY_URI = "uri";
+
+        /**
+         * The projection of a query
+         * <P>Type: String[]</P>
+         */
+        public static final String KEY_PROJECTION = "projection";
+
+        /**
+         * The selection of a query
+         * <P>Type: String</P>
+         */
+        public static final String KEY_SELECTION = "selection";
+
+        /**
+         * The selection arguments of a query
+         * <P>Type: String[]</P>
+         */
+        public static final String KEY_SELECTION_ARGS = "selection_args";
+
+        /**
+         * The sort order of a query
+         * <P>Type: String</P>
+         */
+        public static final String KEY_SORT_ORDER = "sort_order";
+
+        /**
+         * The results of a batch, an ArrayList of Bundles in the order of the queries. Each
+         * result has the {@link #KEY_COLUMNS} of the query, and its rows in {@link #KEY_WINDOW}.
+         */
+        public static final String KEY_RESULTS = "results";
+
+        /**
+         * The column names of a result
+         * <P>Type: String[]</P>
+         */
+        public static final String KEY_COLUMNS = "columns";
+
+        /**
+         * The rows of a result. A result that does not fit in one window has no window, and
+         * the client runs that query on its own.
+         * <P>Type: android.database.CursorWindow</P>
+         */
+        public static final String KEY_WINDOW = "window";
+    }
+
+    /**
+     * The statistics of the provider's query cache. The provider keeps the results of recent
+     * queries until the next change to its data, and answers repeated queries from them.
+     */
+    public static final class QueryCacheStats {
+
+        // This class cannot be instantiated
+        private QueryCacheStats() {}
+
+        /**
+         * The content:// style URL that the statistics are read from
+         */
+        public static final Uri CONTENT_URI = NotePad.CONTENT_URI;
+
+        /**
+         * The method name that returns the statistics, for
+         * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}.
+         * The returned Bundle holds {@link #KEY_HITS}, {@link #KEY_MISSES} and
+         * {@link #KEY_SIZE}.
+         */
+        public static final String METHOD_GET = "query_cache_stats";
+
+        /**
+         * The number of queries answered from the cache since the provider started
+         * <P>Type: long</P>
+         */
+        public static final String KEY_HITS = "hits";
+
+        /**
+         * The number of queries that looked in the cache and were run on the database
+         * <P>Type: long</P>
+         */
+        public static final String KEY_MISSES = "misses";
+
+        /**
+         * The number of results in the cache
+         * <P>Type: int</P>
+         */
+        public static final String KEY_SIZE = "size";
     }
 }
@@ -20,32 +20,55 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.CrossProcessCursorWrapper;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +86,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 17;
+
+    /**
+     * The view that joins each note with the name of its category
+     */
+    private static final String NOTES_WITH_CATEGORY_VIEW = "notes_with_category";
+
+    /**
+     * The table that holds the note bodies, one row for each note. Keeping the bodies out of
+     * the notes table keeps its rows small, so that the list queries, which never read the
+     * body, scan as few pages as possible. The body column has the contract's name.
+     */
+    static final String NOTE_BODIES_TABLE_NAME = "note_bodies";
+
+    /**
+     * The column of the note bodies table that holds the note's _ID
+     */
+    static final String NOTE_BODIES_NOTE_ID = "note_id";
+
+    /**
+     * The notes table with the note bodies joined in
+     */
+    static final String NOTES_WITH_BODIES_TABLES = NotePad.Notes.TABLE_NAME
+            + " LEFT JOIN " + NOTE_BODIES_TABLE_NAME + " ON " + NOTE_BODIES_TABLE_NAME + "."
+            + NOTE_BODIES_NOTE_ID + "=" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
 
     /**
      * A projection map used to select columns from the database
@@ -80,6 +127,40 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static HashMap<String, String> sCategoriesProjectionMap;
 
+    /**
+     * A projection map used to select columns from the categories with their note counts
+     */
+    private static HashMap<String, String> sCategoriesWithCountsProjectionMap;
+
+    /**
+     * A projection map used to select columns from the note counters table
+     */
+    private static HashMap<String, String> sNoteCountersProjectionMap;
+
+    /**
+     * The tables of a categories with counts query. Each category is joined with the sum of its
+     * note counters, so the notes themselves are not read.
+     */
+    private static final String CATEGORIES_WITH_COUNTS_TABLES =
+            NotePad.Categories.TABLE_NAME + " c LEFT JOIN (SELECT "
+            + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + ", SUM("
+            + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + ") AS "
+            + NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+            + " FROM " + NotePad.NoteCounters.TABLE_NAME
+            + " GROUP BY " + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + ") n"
+            + " ON n." + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID
+            + "=c." + NotePad.Categories._ID;
+
+    /**
+     * The directory in the app's cache directory that holds the files of opened notes
+     */
+    private static final String NOTE_FILES_DIRECTORY = "note_files";
+
+    /**
+     * The prefix of the note files that are still being written
+     */
+    private static final String NOTE_FILE_TEMP_PREFIX = "tmp-";
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -88,9 +169,32 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
             NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
+    private static final int READ_NOTE_ID_INDEX = 0;
     private static final int READ_NOTE_TITLE_INDEX = 2;
 
+    /**
+     * The columns a note may be inserted with in a batch
+     */
+    private static final String[] INSERT_NOTE_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_STATUS,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            ContentHashes.COLUMN_NAME_CONTENT_HASH
+    };
+
+    /**
+     * The columns a category may be inserted with in a batch
+     */
+    private static final String[] INSERT_CATEGORY_COLUMNS = new String[] {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_CREATED_TIME,
+            NotePad.Categories.COLUMN_NAME_MODIFIED_TIME
+    };
+
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
      * of the incoming URI
@@ -116,6 +220,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Category ID URI pattern
     private static final int CATEGORY_ID = 7;
 
+    // The incoming URI matches the Notes search URI pattern
+    private static final int NOTES_SEARCH = 8;
+
+    // The incoming URI matches the Categories with counts URI pattern
+    private static final int CATEGORIES_WITH_COUNTS = 9;
+
+    // The incoming URI matches the Note counters URI pattern
+    private static final int NOTE_COUNTERS = 10;
+
+    // The incoming URI matches the Note import URI pattern
+    private static final int NOTES_IMPORT = 11;
+
     /**
      * A UriMatcher instance
      */
@@ -124,6 +240,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // The batch that bulkInsert() or applyBatch() is running on the current thread, if any
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    // Merges the change notifications of writes that come close together
+    private ChangeNotifier mChangeNotifier;
+
+    // Counts the committed changes to the provider's data. The note files are named for the
+    // generation they were written in, so that each is used only until the next change.
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    // The results of recent queries, kept until the generation changes
+    private final QueryCache mQueryCache = new QueryCache();
+
+    // The generation whose note files were last kept when the stale ones were deleted, or -1
+    // before the first time, when every file is deleted
+    private final AtomicLong mNoteFilesGeneration = new AtomicLong(-1);
+
+    // When the provider was created. Temporary note files older than this were left by an
+    // earlier process; newer ones may still be being written.
+    private final long mCreatedMillis = System.currentTimeMillis();
+
 
     /**
      * A block that instantiates and sets static objects
@@ -153,6 +290,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Add a pattern that routes URIs terminated with "notes/normal" to a NORMAL notes operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/normal", NOTES_NORMAL);
 
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
         // Add a pattern that routes URIs terminated with "categories" to a CATEGORIES operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
 
@@ -160,6 +300,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // to a category ID operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "categories/#", CATEGORY_ID);
 
+        // Add a pattern that routes URIs terminated with "categories/with_counts" to a
+        // categories with counts operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories/with_counts", CATEGORIES_WITH_COUNTS);
+
+        // Add a pattern that routes URIs terminated with "note_counters" to a note counters
+        // operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "note_counters", NOTE_COUNTERS);
+
+        // Add a pattern that routes URIs terminated with "notes/imports" plus an integer
+        // to the notes staged by an import
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/imports/#", NOTES_IMPORT);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -177,6 +329,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "note" to "note"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
 
+        // Maps "note_length" to "note_length", which only the note bodies table has
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+                NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
+
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                 NotePad.Notes.COLUMN_NAME_CREATE_DATE);
@@ -192,6 +348,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "category_id" to "category_id"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
 
+        // Maps "category_name" to "category_name", which only the notes_with_category view has
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_NAME);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -203,6 +363,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_CREATED_TIME, NotePad.Categories.COLUMN_NAME_CREATED_TIME);
         sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_MODIFIED_TIME, NotePad.Categories.COLUMN_NAME_MODIFIED_TIME);
 
+        // Create a projection map for categories with their note counts
+        sCategoriesWithCountsProjectionMap = new HashMap<String, String>();
+        for (String column : sCategoriesProjectionMap.keySet()) {
+            sCategoriesWithCountsProjectionMap.put(column, "c." + column + " AS " + column);
+        }
+        sCategoriesWithCountsProjectionMap.put(NotePad.Categories.COLUMN_NAME_NOTE_COUNT,
+                "IFNULL(n." + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + ",0) AS "
+                + NotePad.Categories.COLUMN_NAME_NOTE_COUNT);
+
+        // Create a projection map for the note counters table
+        sNoteCountersProjectionMap = new HashMap<String, String>();
+        sNoteCountersProjectionMap.put(NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID,
+                NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID);
+        sNoteCountersProjectionMap.put(NotePad.NoteCounters.COLUMN_NAME_STATUS,
+                NotePad.NoteCounters.COLUMN_NAME_STATUS);
+        sNoteCountersProjectionMap.put(NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT,
+                NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT);
+
         // Creates a new projection map instance
         sLiveFolderProjectionMap = new HashMap<String, String>();
 
@@ -221,10 +399,103 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       /**
+        * The default synchronous mode of the writer connection. With write-ahead logging,
+        * NORMAL syncs the log only at checkpoints, so a commit does not wait for the disk, and
+        * the database stays consistent if the device loses power.
+        */
+       static final String DEFAULT_SYNCHRONOUS = "NORMAL";
+
+       /**
+        * The default number of pages the log may grow to before a commit checkpoints it back
+        * into the database file.
+        */
+       static final int DEFAULT_WAL_AUTOCHECKPOINT = 1000;
+
+       // The synchronous mode and checkpoint threshold applied when the database is opened
+       private final String mSynchronous;
+       private final int mWalAutoCheckpoint;
+
        DatabaseHelper(Context context) {
+           this(context, DEFAULT_SYNCHRONOUS, DEFAULT_WAL_AUTOCHECKPOINT);
+       }
+
+       /**
+        * Creates a helper with the given durability and checkpoint policy.
+        *
+        * From API 29 the synchronous mode is part of the database's configuration, which the
+        * framework applies to every connection it opens or reconfigures. Before that it can
+        * only be set with a PRAGMA, see {@link #onConfigure}.
+        *
+        * @param synchronous The value of PRAGMA synchronous, such as "NORMAL" or "FULL".
+        * @param walAutoCheckpoint The value of PRAGMA wal_autocheckpoint, in pages.
+        */
+       DatabaseHelper(Context context, String synchronous, int walAutoCheckpoint) {
 
            // calls the super constructor, requesting the default cursor factory.
            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+           mSynchronous = synchronous;
+           mWalAutoCheckpoint = walAutoCheckpoint;
+           if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+               setOpenParams(new SQLiteDatabase.OpenParams.Builder()
+                       .setJournalMode("WAL")
+                       .setSynchronousMode(synchronous)
+                       .build());
+           }
+       }
+
+       /**
+        * Opens the database in write-ahead logging mode. Writers then append to the log
+        * instead of locking the database file, and the connection pool gives each reading
+        * thread its own connection, so the notes list keeps loading while a note is saved or
+        * an import is running.
+        */
+       @Override
+       public void onConfigure(SQLiteDatabase db) {
+           db.enableWriteAheadLogging();
+
+           // Before API 29 the synchronous mode is set here, after enabling the log, which
+           // resets it. This is best effort: the PRAGMA runs on whichever connection the pool
+           // gives it, and the framework sets its own mode again whenever it reconfigures a
+           // connection. Nothing here reconfigures the database once it is open, so this
+           // holds for the primary connection unless the framework reopens it.
+           if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+               pragma(db, "synchronous=" + mSynchronous);
+           }
+
+           // Only the primary connection commits, and so checkpoints, so the threshold is set
+           // in a transaction, which holds that connection. A read-only database never
+           // checkpoints.
+           if (!db.isReadOnly()) {
+               db.beginTransactionNonExclusive();
+               try {
+                   pragma(db, "wal_autocheckpoint=" + mWalAutoCheckpoint);
+                   db.setTransactionSuccessful();
+               } finally {
+                   db.endTransaction();
+               }
+           }
+       }
+
+       /**
+        * Deletes the note bodies that were being streamed in when the process last stopped.
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           if (!db.isReadOnly()) {
+               NoteBodies.deleteUploads(db);
+               NoteImports.deleteImports(db);
+           }
+       }
+
+       // Runs a PRAGMA. Some of them return a row, which execSQL() does not allow.
+       private static void pragma(SQLiteDatabase db, String pragma) {
+           Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+           try {
+               c.moveToFirst();
+           } finally {
+               c.close();
+           }
        }
 
        /**
@@ -235,15 +506,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        @Override
        public void onCreate(SQLiteDatabase db) {
            // Create notes table
-           db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
-                   + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
-                   + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_STATUS + " INTEGER DEFAULT 0,"
-                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 0"
-                   + ");");
+           createNotesTable(db, NotePad.Notes.TABLE_NAME);
+
+           // Create the tables of note bodies, their chunks, and the bodies being streamed in
+           createNoteBodiesTable(db);
+           NoteBodies.createChunksTable(db);
+           NoteBodies.createUploadsTable(db);
+           createNoteBodiesTrigger(db);
+
+           // Create the table of notes staged by imports
+           NoteImports.createTable(db);
 
            // Create categories table
            db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
@@ -252,6 +524,249 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Categories.COLUMN_NAME_CREATED_TIME + " INTEGER,"
                    + NotePad.Categories.COLUMN_NAME_MODIFIED_TIME + " INTEGER"
                    + ");");
+           createCategoriesTrigger(db);
+           createNoteCategoryTriggers(db);
+
+           // Create the full-text index over the notes
+           NoteSearchIndex.create(db);
+
+           // Create the indexes for the notes list queries, and for imports
+           createNotesIndexes(db);
+           createContentHashIndex(db);
+
+           // Create the view of the notes with their category names
+           createNotesWithCategoryView(db);
+
+           // Create the note counters and the triggers that maintain them
+           createNoteCounters(db);
+       }
+
+       /**
+        * Creates a table with the columns of the notes table. The note bodies are stored in
+        * their own table.
+        */
+       private void createNotesTable(SQLiteDatabase db, String tableName) {
+           db.execSQL("CREATE TABLE " + tableName + " ("
+                   + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_STATUS + " INTEGER DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 0,"
+                   + ContentHashes.COLUMN_NAME_CONTENT_HASH + " INTEGER"
+                   + ");");
+       }
+
+       /**
+        * Creates the index that imports look notes up by their content in.
+        */
+       private void createContentHashIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_content_hash_idx ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + ContentHashes.COLUMN_NAME_CONTENT_HASH
+                   + ");");
+       }
+
+       /**
+        * Creates the table of note bodies, keyed by the note's _ID.
+        */
+       private void createNoteBodiesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + NOTE_BODIES_TABLE_NAME + " ("
+                   + NOTE_BODIES_NOTE_ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+       }
+
+       /**
+        * Creates the trigger that deletes a note's body and its chunks with the note.
+        */
+       private void createNoteBodiesTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER note_bodies_ad AFTER DELETE ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + "DELETE FROM " + NOTE_BODIES_TABLE_NAME
+                   + " WHERE " + NOTE_BODIES_NOTE_ID + "=old." + NotePad.Notes._ID + ";"
+                   + "DELETE FROM " + NoteBodies.CHUNKS_TABLE_NAME
+                   + " WHERE " + NoteBodies.COLUMN_NAME_NOTE_ID + "=old." + NotePad.Notes._ID + ";"
+                   + " END;");
+       }
+
+       /**
+        * Creates the trigger that takes the notes of a deleted category out of it, so that no
+        * note refers to a category that does not exist. The notes are found through the
+        * category index, and the counter triggers move their counts to "no category".
+        */
+       private void createCategoriesTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER categories_ad AFTER DELETE ON "
+                   + NotePad.Categories.TABLE_NAME
+                   + " BEGIN "
+                   + "UPDATE " + NotePad.Notes.TABLE_NAME
+                   + " SET " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=0"
+                   + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=old."
+                   + NotePad.Categories._ID + ";"
+                   + " END;");
+       }
+
+       /**
+        * Creates the triggers that stop a note from being filed in a category that does not
+        * exist, when it is inserted or its category is changed. A missing category, or 0, is
+        * no category, and is always allowed.
+        */
+       private void createNoteCategoryTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER notes_category_bi BEFORE INSERT ON "
+                   + NotePad.Notes.TABLE_NAME
+                   + " WHEN " + missingCategory("new")
+                   + " BEGIN SELECT RAISE(ABORT,'No such category'); END;");
+
+           db.execSQL("CREATE TRIGGER notes_category_bu BEFORE UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " ON " + NotePad.Notes.TABLE_NAME
+                   + " WHEN " + missingCategory("new")
+                   + " BEGIN SELECT RAISE(ABORT,'No such category'); END;");
+       }
+
+       // Returns the condition that a row's category is set, and is not in the categories table.
+       private static String missingCategory(String row) {
+           return counterKey(row, NotePad.Notes.COLUMN_NAME_CATEGORY_ID) + "<>0"
+                   + " AND NOT EXISTS (SELECT 1 FROM " + NotePad.Categories.TABLE_NAME
+                   + " WHERE " + NotePad.Categories._ID + "=" + row + "."
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ")";
+       }
+
+       /**
+        * Creates the note counters table, fills it from the notes table, and creates the
+        * triggers that keep it up to date as notes are inserted, deleted, or moved to another
+        * category or status. A missing category or status is counted as 0, its default.
+        */
+       private void createNoteCounters(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + NotePad.NoteCounters.TABLE_NAME + " ("
+                   + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + " INTEGER NOT NULL,"
+                   + NotePad.NoteCounters.COLUMN_NAME_STATUS + " INTEGER NOT NULL,"
+                   + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL,"
+                   + "PRIMARY KEY (" + NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + ","
+                   + NotePad.NoteCounters.COLUMN_NAME_STATUS + ")"
+                   + ");");
+
+           db.execSQL("INSERT INTO " + NotePad.NoteCounters.TABLE_NAME + " SELECT "
+                   + "IFNULL(" + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ",0),"
+                   + "IFNULL(" + NotePad.Notes.COLUMN_NAME_STATUS + ",0),"
+                   + "COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " GROUP BY 1,2;");
+
+           createNoteCounterTriggers(db);
+       }
+
+       /**
+        * Creates the triggers that maintain the note counters.
+        */
+       private void createNoteCounterTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER note_counters_ai AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + incrementNoteCounter("new")
+                   + " END;");
+
+           db.execSQL("CREATE TRIGGER note_counters_ad AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + decrementNoteCounter("old")
+                   + " END;");
+
+           db.execSQL("CREATE TRIGGER note_counters_au AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "," + NotePad.Notes.COLUMN_NAME_STATUS
+                   + " ON " + NotePad.Notes.TABLE_NAME
+                   + " WHEN " + counterKey("old", NotePad.Notes.COLUMN_NAME_CATEGORY_ID)
+                   + "<>" + counterKey("new", NotePad.Notes.COLUMN_NAME_CATEGORY_ID)
+                   + " OR " + counterKey("old", NotePad.Notes.COLUMN_NAME_STATUS)
+                   + "<>" + counterKey("new", NotePad.Notes.COLUMN_NAME_STATUS)
+                   + " BEGIN "
+                   + decrementNoteCounter("old")
+                   + incrementNoteCounter("new")
+                   + " END;");
+       }
+
+       // Returns the trigger statements that count one more note for a row's category and status.
+       private static String incrementNoteCounter(String row) {
+           return "INSERT OR IGNORE INTO " + NotePad.NoteCounters.TABLE_NAME + " VALUES ("
+                   + counterKey(row, NotePad.Notes.COLUMN_NAME_CATEGORY_ID) + ","
+                   + counterKey(row, NotePad.Notes.COLUMN_NAME_STATUS) + ",0);"
+                   + "UPDATE " + NotePad.NoteCounters.TABLE_NAME + " SET "
+                   + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + "="
+                   + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + "+1"
+                   + " WHERE " + counterWhere(row) + ";";
+       }
+
+       // Returns the trigger statements that count one less note for a row's category and
+       // status, and drop the counter when it reaches zero.
+       private static String decrementNoteCounter(String row) {
+           return "UPDATE " + NotePad.NoteCounters.TABLE_NAME + " SET "
+                   + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + "="
+                   + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + "-1"
+                   + " WHERE " + counterWhere(row) + ";"
+                   + "DELETE FROM " + NotePad.NoteCounters.TABLE_NAME
+                   + " WHERE " + counterWhere(row)
+                   + " AND " + NotePad.NoteCounters.COLUMN_NAME_NOTE_COUNT + "<=0;";
+       }
+
+       private static String counterWhere(String row) {
+           return NotePad.NoteCounters.COLUMN_NAME_CATEGORY_ID + "="
+                   + counterKey(row, NotePad.Notes.COLUMN_NAME_CATEGORY_ID)
+                   + " AND " + NotePad.NoteCounters.COLUMN_NAME_STATUS + "="
+                   + counterKey(row, NotePad.Notes.COLUMN_NAME_STATUS);
+       }
+
+       private static String counterKey(String row, String column) {
+           return "IFNULL(" + row + "." + column + ",0)";
+       }
+
+       /**
+        * Creates the view that joins each note with the name of its category, so that the
+        * notes list gets the names in the same query as the notes. The join looks each
+        * category up by its primary key, and the notes are still read through their own
+        * indexes.
+        */
+       private void createNotesWithCategoryView(SQLiteDatabase db) {
+           db.execSQL("CREATE VIEW " + NOTES_WITH_CATEGORY_VIEW + " AS SELECT "
+                   + "n." + NotePad.Notes._ID + " AS " + NotePad.Notes._ID + ","
+                   + "n." + NotePad.Notes.COLUMN_NAME_TITLE
+                   + " AS " + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + "n." + NotePad.Notes.COLUMN_NAME_CREATE_DATE
+                   + " AS " + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ","
+                   + "n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + " AS " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                   + "n." + NotePad.Notes.COLUMN_NAME_STATUS
+                   + " AS " + NotePad.Notes.COLUMN_NAME_STATUS + ","
+                   + "n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                   + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                   + "c." + NotePad.Categories.COLUMN_NAME_NAME
+                   + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_NAME
+                   + " FROM " + NotePad.Notes.TABLE_NAME + " n"
+                   + " LEFT JOIN " + NotePad.Categories.TABLE_NAME + " c"
+                   + " ON c." + NotePad.Categories._ID + "=n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                   + ";");
+       }
+
+       /**
+        * Creates the indexes that serve the query shapes of the notes list. The list is always
+        * sorted by modification date, either over all notes or filtered by category, by status,
+        * or by both, so each filter gets an index that ends in the modification date. SQLite can
+        * then read the rows in order instead of sorting the whole table on every load.
+        */
+       private void createNotesIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_modified_idx ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + ");");
+           db.execSQL("CREATE INDEX notes_category_modified_idx ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + ");");
+           db.execSQL("CREATE INDEX notes_status_modified_idx ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_STATUS + ","
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + ");");
+           db.execSQL("CREATE INDEX notes_status_category_modified_idx ON "
+                   + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_STATUS + ","
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + ");");
        }
 
        /**
@@ -268,6 +783,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                    + newVersion);
 
+           // Set when the full-text index must be filled, which is done after the other steps,
+           // once the notes are in the tables of the current version
+           boolean rebuildSearchIndex = false;
+
            // Handle different upgrade paths based on old version
            if (oldVersion < 3) {
                // Add status column to existing notes table
@@ -287,6 +806,134 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                        + ");");
            }
 
+           // Replace the trigger-maintained full-text index of version 5, which cannot find
+           // words inside Chinese text, with the segmented index (version 6)
+           if (oldVersion < 6) {
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_bu");
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_bd");
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_au");
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_ai");
+               db.execSQL("DROP TABLE IF EXISTS " + NoteSearchIndex.TABLE_NAME);
+               NoteSearchIndex.create(db);
+               rebuildSearchIndex = true;
+           }
+
+           // Add the indexes for the notes list queries (version 7)
+           if (oldVersion < 7) {
+               createNotesIndexes(db);
+           }
+
+           // Add the view of the notes with their category names (version 8)
+           if (oldVersion < 8) {
+               createNotesWithCategoryView(db);
+           }
+
+           // Add the note counters (version 9)
+           if (oldVersion < 9) {
+               createNoteCounters(db);
+           }
+
+           // Move the note bodies into their own table (version 10). SQLite cannot drop a
+           // column, so the notes table is rebuilt without it, and the indexes, triggers and
+           // view on the notes are created again.
+           if (oldVersion < 10) {
+               db.execSQL("DROP VIEW IF EXISTS " + NOTES_WITH_CATEGORY_VIEW);
+
+               createNoteBodiesTable(db);
+               db.execSQL("INSERT INTO " + NOTE_BODIES_TABLE_NAME + " ("
+                       + NOTE_BODIES_NOTE_ID + "," + NotePad.Notes.COLUMN_NAME_NOTE + ")"
+                       + " SELECT " + NotePad.Notes._ID + "," + NotePad.Notes.COLUMN_NAME_NOTE
+                       + " FROM " + NotePad.Notes.TABLE_NAME);
+
+               String columns = NotePad.Notes._ID + ","
+                       + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                       + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ","
+                       + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                       + NotePad.Notes.COLUMN_NAME_STATUS + ","
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+               createNotesTable(db, "notes_new");
+               db.execSQL("INSERT INTO notes_new (" + columns + ") SELECT " + columns
+                       + " FROM " + NotePad.Notes.TABLE_NAME);
+               db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+               db.execSQL("ALTER TABLE notes_new RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+               createNotesIndexes(db);
+               createNoteBodiesTrigger(db);
+               createNoteCounterTriggers(db);
+               NoteSearchIndex.createTriggers(db);
+               createNotesWithCategoryView(db);
+           }
+
+           // Store the note bodies in chunks (version 11). A database upgraded from an earlier
+           // version already has the length column and the new trigger from the step above.
+           if (oldVersion < 11) {
+               if (oldVersion >= 10) {
+                   db.execSQL("ALTER TABLE " + NOTE_BODIES_TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " INTEGER NOT NULL DEFAULT 0");
+                   db.execSQL("DROP TRIGGER IF EXISTS note_bodies_ad");
+                   createNoteBodiesTrigger(db);
+               }
+               NoteBodies.createChunksTable(db);
+               db.execSQL("UPDATE " + NOTE_BODIES_TABLE_NAME + " SET "
+                       + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + "=IFNULL(length("
+                       + NotePad.Notes.COLUMN_NAME_NOTE + "),0)");
+               NoteBodies.splitLongBodies(db);
+           }
+
+           // Add the table of bodies being streamed in (version 12)
+           if (oldVersion < 12) {
+               NoteBodies.createUploadsTable(db);
+           }
+
+           // Take the notes of deleted categories out of them, and keep it that way (version 13)
+           if (oldVersion < 13) {
+               db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME
+                       + " SET " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=0"
+                       + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "<>0"
+                       + " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " NOT IN (SELECT "
+                       + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME + ")");
+               createCategoriesTrigger(db);
+           }
+
+           // Add the table of notes staged by imports (version 14)
+           if (oldVersion < 14) {
+               NoteImports.createTable(db);
+           }
+
+           // Store a hash of each note's content, for imports to find the notes they already
+           // have (version 15). The tables created by the steps above already have the column.
+           if (oldVersion < 15) {
+               if (oldVersion >= 10) {
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + ContentHashes.COLUMN_NAME_CONTENT_HASH + " INTEGER");
+               }
+               if (oldVersion >= 14) {
+                   db.execSQL("ALTER TABLE " + NoteImports.TABLE_NAME + " ADD COLUMN "
+                           + ContentHashes.COLUMN_NAME_CONTENT_HASH + " INTEGER");
+               }
+               createContentHashIndex(db);
+               ContentHashes.updateAll(db);
+           }
+
+           // Keep notes out of categories that do not exist (version 16). The step of version
+           // 13 already took them out of the deleted ones.
+           if (oldVersion < 16) {
+               createNoteCategoryTriggers(db);
+           }
+
+           // Give the full-text index a prefix index for the prefix queries of the segmented
+           // text (version 17). An FTS table's options can't be changed, so it is created again.
+           if (oldVersion < 17 && oldVersion >= 6) {
+               db.execSQL("DROP TRIGGER IF EXISTS notes_fts_ad");
+               db.execSQL("DROP TABLE IF EXISTS " + NoteSearchIndex.TABLE_NAME);
+               NoteSearchIndex.create(db);
+               rebuildSearchIndex = true;
+           }
+
+           if (rebuildSearchIndex) {
+               NoteSearchIndex.rebuild(db);
+           }
+
            // Uncomment the following lines if you want to recreate the database
            // (but this will destroy all existing data)
            /*
@@ -315,6 +962,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // Creates a new helper object. Note that the database itself isn't opened until
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
+       mChangeNotifier = new ChangeNotifier(getContext().getContentResolver());
 
        // Assumes that any failures will be reported by a thrown exception.
        return true;
@@ -333,6 +981,58 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
 
+       // Writes of the current thread that are not committed yet must not be cached, nor
+       // answered from the cache
+       if (mBatch.get() != null || mOpenHelper.getReadableDatabase().inTransaction()) {
+           return queryDatabase(uri, projection, selection, selectionArgs, sortOrder);
+       }
+
+       // The generation is read before the query runs, so that a result is never tagged with
+       // a generation newer than its data
+       String key = QueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
+       long generation = mGeneration.get();
+       Cursor c = mQueryCache.get(key, generation);
+       if (c == null) {
+           c = mQueryCache.put(key, generation,
+                   queryDatabase(uri, projection, selection, selectionArgs, sortOrder));
+       }
+       c.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+       return c;
+   }
+
+   // Runs a query on the database, for query().
+   private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder) {
+       return queryDatabase(uri, projection, selection, selectionArgs, sortOrder, null);
+   }
+
+   // Runs a query on the database. The limit, if there is one, is the largest number of rows a
+   // query that is not paged through its URI returns, for the provider's own paging.
+   private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder, String limit) {
+
+       // Opens the database object in "read" mode, since no writes need to be done.
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+       /*
+        * Performs the query. If no records were selected, then the Cursor object is empty, and
+        * Cursor.getCount() returns 0.
+        */
+       Cursor c = db.rawQuery(
+           buildQuery(uri, projection, selection, sortOrder, limit),
+           selectionArgs  // The values for the where clause
+       );
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes.
+       c.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+       return c;
+   }
+
+   // Builds the SQL of a query of the database, for queryDatabase(). The arguments of the
+   // selection are bound when the query runs.
+   private String buildQuery(Uri uri, String[] projection, String selection, String sortOrder,
+           String limit) {
+
        // Constructs a new query builder and sets its table name
        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
        qb.setTables(NotePad.Notes.TABLE_NAME);
@@ -340,7 +1040,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        /**
         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
         */
-       switch (sUriMatcher.match(uri)) {
+       int match = sUriMatcher.match(uri);
+       switch (match) {
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
                qb.setProjectionMap(sNotesProjectionMap);
@@ -376,6 +1077,32 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                qb.appendWhere(NotePad.Notes.COLUMN_NAME_STATUS + "=" + NotePad.Notes.STATUS_PENDING);
                break;
 
+           case NOTES_SEARCH:
+               // If the incoming URI is a search, chooses the Notes projection and restricts the
+               // rows to the notes that the full-text index matches, instead of scanning every
+               // note with LIKE
+               qb.setProjectionMap(sNotesProjectionMap);
+               String searchText = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+               String matchQuery = NoteSearchIndex.buildMatchQuery(searchText);
+               if (matchQuery != null) {
+                   qb.appendWhere(NotePad.Notes._ID + " IN (SELECT docid FROM "
+                           + NoteSearchIndex.TABLE_NAME + " WHERE " + NoteSearchIndex.TABLE_NAME
+                           + " MATCH ");
+                   qb.appendWhereEscapeString(matchQuery);
+                   qb.appendWhere(")");
+               } else if (searchText != null && searchText.trim().length() > 0) {
+                   // Text with nothing the index holds, such as punctuation, is looked for in
+                   // the titles as it is
+                   qb.appendWhere(NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ");
+                   qb.appendWhereEscapeString("%" + searchText.trim()
+                           .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+                   qb.appendWhere(" ESCAPE '\\'");
+               } else {
+                   // No search text finds no notes
+                   qb.appendWhere("0");
+               }
+               break;
+
            // If the incoming URI is for categories, chooses the Categories projection
            case CATEGORIES:
                qb.setTables(NotePad.Categories.TABLE_NAME);
@@ -391,42 +1118,124 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    uri.getPathSegments().get(NotePad.Categories.CATEGORY_ID_PATH_POSITION));
                break;
 
+           // If the incoming URI is for categories with their note counts
+           case CATEGORIES_WITH_COUNTS:
+               qb.setTables(CATEGORIES_WITH_COUNTS_TABLES);
+               qb.setProjectionMap(sCategoriesWithCountsProjectionMap);
+               break;
+
+           // If the incoming URI is for the note counters
+           case NOTE_COUNTERS:
+               qb.setTables(NotePad.NoteCounters.TABLE_NAME);
+               qb.setProjectionMap(sNoteCountersProjectionMap);
+               break;
+
            default:
                // If the URI doesn't match any of the known patterns, throw an exception.
                throw new IllegalArgumentException("Unknown URI " + uri);
        }
 
 
+       // The category name comes from the categories table, which the notes_with_category view
+       // joins in, and the note body from the note bodies table. Each is joined only when the
+       // query uses its column, so the list queries read the notes table alone.
+       if (match == NOTES || match == NOTE_ID || match == NOTES_TODO || match == NOTES_NORMAL
+               || match == NOTES_SEARCH) {
+           String tables = NotePad.Notes.TABLE_NAME;
+           if (usesColumn(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME, projection, selection, sortOrder)) {
+               tables = NOTES_WITH_CATEGORY_VIEW;
+           }
+           if (usesColumn(NotePad.Notes.COLUMN_NAME_NOTE, projection, selection, sortOrder)
+                   || usesColumn(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, projection, selection,
+                           sortOrder)) {
+               tables += " LEFT JOIN " + NOTE_BODIES_TABLE_NAME + " ON " + NOTE_BODIES_TABLE_NAME
+                       + "." + NOTE_BODIES_NOTE_ID + "=" + tables + "." + NotePad.Notes._ID;
+           }
+           qb.setTables(tables);
+       }
+
        String orderBy;
-       // If no sort order is specified, uses the default
+       // If no sort order is specified, uses the default of the table
        if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+           if (match == NOTE_COUNTERS) {
+               orderBy = null;
+           } else if (match == CATEGORIES || match == CATEGORY_ID
+                   || match == CATEGORIES_WITH_COUNTS) {
+               orderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
+           } else {
+               orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+           }
        } else {
            // otherwise, uses the incoming sort order
            orderBy = sortOrder;
        }
 
-       // Opens the database object in "read" mode, since no writes need to be done.
-       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-
        /*
-        * Performs the query. If no problems occur trying to read the database, then a Cursor
-        * object is returned; otherwise, the cursor variable contains null. If no records were
-        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+        * A paged query of the notes returns at most "limit" notes, starting after the note
+        * given in "after". The page is found by its position in the sort order, so SQLite seeks
+        * to it in an index instead of skipping the notes of the earlier pages as OFFSET would.
         */
-       Cursor c = qb.query(
-           db,            // The database to query
+       String pageLimit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+       String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+       if (pageLimit != null || after != null) {
+           if (match != NOTES && match != NOTES_TODO && match != NOTES_NORMAL
+                   && match != NOTES_SEARCH) {
+               throw new IllegalArgumentException("Paging is not supported for URI " + uri);
+           }
+           if (!TextUtils.isEmpty(sortOrder)
+                   && !NotePad.Notes.PAGE_SORT_ORDER.equals(sortOrder)) {
+               throw new IllegalArgumentException(
+                       "Paged queries are sorted by " + NotePad.Notes.PAGE_SORT_ORDER);
+           }
+           orderBy = NotePad.Notes.PAGE_SORT_ORDER;
+
+           limit = null;
+           if (pageLimit != null) {
+               long pageSize = parsePageNumber(pageLimit, uri);
+               if (pageSize <= 0) {
+                   throw new IllegalArgumentException("Invalid page limit in URI " + uri);
+               }
+               limit = Long.toString(pageSize);
+           }
+
+           if (after != null) {
+               String[] position = after.split(",");
+               if (position.length != 2) {
+                   throw new IllegalArgumentException("Invalid page position in URI " + uri);
+               }
+               long modified = parsePageNumber(position[0], uri);
+               long id = parsePageNumber(position[1], uri);
+
+               // Written so that SQLite can use the range on the modification date
+               String pageWhere = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "<=" + modified
+                       + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "<" + modified
+                       + " OR " + NotePad.Notes._ID + "<" + id + ")";
+               selection = TextUtils.isEmpty(selection)
+                       ? pageWhere : "(" + selection + ") AND " + pageWhere;
+           }
+       }
+
+       return qb.buildQuery(
            projection,    // The columns to return from the query
            selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
            null,          // don't group the rows
            null,          // don't filter by row groups
-           orderBy        // The sort order
+           orderBy,       // The sort order
+           limit          // The page size, or null for all rows
        );
+   }
 
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
-       return c;
+   // Returns the URI that a cursor on a query's result watches. The note counters change with
+   // the notes, and the categories with counts with both tables, so those cursors watch the
+   // notes or the whole provider.
+   private static Uri getNotificationUri(Uri uri) {
+       int match = sUriMatcher.match(uri);
+       if (match == NOTE_COUNTERS) {
+           return NotePad.Notes.CONTENT_URI;
+       } else if (match == CATEGORIES_WITH_COUNTS) {
+           return NotePad.CONTENT_URI;
+       }
+       return uri;
    }
 
    /**
@@ -445,8 +1254,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        switch (sUriMatcher.match(uri)) {
 
-           // If the pattern is for notes or live folders, returns the general content type.
+           // If the pattern is for notes, note searches or live folders, returns the general
+           // content type.
            case NOTES:
+           case NOTES_SEARCH:
            case LIVE_FOLDER_NOTES:
                return NotePad.Notes.CONTENT_TYPE;
 
@@ -456,12 +1267,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
            // If the pattern is for categories, returns the general content type.
            case CATEGORIES:
+           case CATEGORIES_WITH_COUNTS:
                return NotePad.Categories.CONTENT_TYPE;
 
            // If the pattern is for category IDs, returns the category ID content type.
            case CATEGORY_ID:
                return NotePad.Categories.CONTENT_ITEM_TYPE;
 
+           // If the pattern is for the note counters, returns their content type.
+           case NOTE_COUNTERS:
+               return NotePad.NoteCounters.CONTENT_TYPE;
+
            // If the URI pattern doesn't match any permitted patterns, throws an exception.
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -477,13 +1293,40 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
     /**
-     * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * This describes the MIME types that are supported for opening the notes, or the notes
+     * selected by a todo, normal or search URI, as a stream.
+     */
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.STREAM_TYPE_JSON, ClipDescription.MIMETYPE_TEXT_PLAIN });
+
+    /**
+     * The number of notes the notes stream reads in each query
+     */
+    static final int NOTES_STREAM_PAGE_SIZE = 100;
+
+    /**
+     * The columns the notes stream reads. The content is read separately, a chunk at a time.
+     */
+    private static final String[] NOTES_STREAM_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+    private static final int NOTES_STREAM_ID_INDEX = 0;
+    private static final int NOTES_STREAM_TITLE_INDEX = 1;
+    private static final int NOTES_STREAM_CREATE_DATE_INDEX = 2;
+    private static final int NOTES_STREAM_MODIFICATION_DATE_INDEX = 3;
+
+    /**
+     * Returns the types of available data streams. URIs to specific notes are supported; the
+     * application can convert such a note to a plain text stream. The notes URI, its todo and
+     * normal sub-directories and the search URI can be streamed as JSON or plain text.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     * type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     * type for MIME types that match the filter.
+     * @return the data stream MIME types, or null if none match.
      * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
      */
     @Override
@@ -493,9 +1336,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for a list of notes, returns the types of the notes stream
             case NOTES:
+            case NOTES_TODO:
+            case NOTES_NORMAL:
+            case NOTES_SEARCH:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for live folders, return null. Data streams are not supported
+            // for this type of URI.
             case LIVE_FOLDER_NOTES:
                 return null;
 
@@ -513,7 +1362,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     /**
      * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
+     * incoming URI, then writes the data into a cached file that the caller can seek in. If the
+     * file can't be written, it uses
      * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
      * PipeDataWriter)} to start another thread in which to convert the data into a stream.
      *
@@ -532,6 +1382,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // If the URI is for a list of notes, starts a new thread that writes the notes into a
+        // pipe, a page at a time.
+        if (mimeTypes != null && sUriMatcher.match(uri) != NOTE_ID) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, null, mNotesStreamWriter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -560,7 +1418,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new FileNotFoundException("Unable to query " + uri);
             }
 
-            // Start a new thread that pipes the stream data back to the caller.
+            // Returns the note's file, which the caller can seek in and knows the length of.
+            try {
+                ParcelFileDescriptor fd = openNoteFile(ContentUris.parseId(uri), c);
+                c.close();
+                return new AssetFileDescriptor(fd, 0, fd.getStatSize());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write the file of " + uri, e);
+            }
+
+            // If the file can't be written, starts a new thread that pipes the stream data back
+            // to the caller.
             return new AssetFileDescriptor(
                     openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
                     AssetFileDescriptor.UNKNOWN_LENGTH);
@@ -583,11 +1451,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
         PrintWriter pw = null;
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+            pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(fout, "UTF-8")));
+            writeNoteText(pw, c);
+        } catch (IOException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
             c.close();
@@ -602,6 +1468,423 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 //END_INCLUDE(stream)
 
+    /**
+     * Writes the notes of a notes, todo, normal or search URI into a pipe, for
+     * {@link #openTypedAssetFile}. The notes are read in pages of
+     * {@link #NOTES_STREAM_PAGE_SIZE}, each page a query that starts after the last note of the
+     * previous page, and each note's content is copied a chunk at a time. Memory use does not
+     * grow with the number or length of the notes.
+     *
+     * The pages are in _ID order, which a write between two pages cannot change, so a note
+     * that is edited while the stream is written is still written once. A note inserted
+     * meanwhile is written if it comes after the current page, and a deleted one if it came
+     * before.
+     *
+     * As JSON, the notes are written in the format of the export file, which
+     * {@link JsonSerializer} reads, followed by the number of notes written, so that a reader
+     * can check that it has all of them. As plain text, each note is written as the note stream
+     * writes it, followed by an empty line.
+     */
+    private final PipeDataWriter<Object> mNotesStreamWriter = new PipeDataWriter<Object>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, Object args) {
+            FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"));
+                writeNotes(out, uri, NotePad.Notes.STREAM_TYPE_JSON.equals(mimeType));
+                out.flush();
+            } catch (IOException e) {
+                // The reader closed the pipe before it read all of the notes
+                Log.w(TAG, "Failed to write " + uri, e);
+            } finally {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    };
+
+    // Writes the notes of a URI to a stream, as JSON or plain text.
+    private void writeNotes(Writer out, Uri uri, boolean json) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Writer content = json ? new JsonStringWriter(out) : out;
+        if (json) {
+            out.write("{\"" + JsonSerializer.VERSION_KEY + "\":");
+            writeJsonString(out, JsonSerializer.CURRENT_VERSION);
+            out.write(",\"" + JsonSerializer.EXPORT_TIME_KEY + "\":" + System.currentTimeMillis());
+            out.write(",\"" + JsonSerializer.NOTES_KEY + "\":[");
+        }
+
+        // The pages keep the search text of a search URI, if it has one. They are not cached,
+        // since each is read once.
+        Uri.Builder pageUri = uri.buildUpon().clearQuery();
+        String searchText = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+        if (searchText != null) {
+            pageUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, searchText);
+        }
+        Uri page = pageUri.build();
+        String limit = Integer.toString(NOTES_STREAM_PAGE_SIZE);
+
+        boolean first = true;
+        long after = 0;
+        int count = 0;
+        boolean more;
+        do {
+            Cursor c = queryDatabase(page, NOTES_STREAM_PROJECTION,
+                    NotePad.Notes._ID + ">" + after, null, NotePad.Notes._ID, limit);
+            try {
+                more = c.getCount() == NOTES_STREAM_PAGE_SIZE;
+                while (c.moveToNext()) {
+                    long noteId = c.getLong(NOTES_STREAM_ID_INDEX);
+                    String title = c.getString(NOTES_STREAM_TITLE_INDEX);
+                    after = noteId;
+                    count++;
+                    if (!json) {
+                        out.write((title == null ? "" : title) + "\n\n");
+                        NoteBodies.copy(db, noteId, out);
+                        out.write("\n\n");
+                        continue;
+                    }
+
+                    out.write(first ? "{" : ",{");
+                    first = false;
+                    out.write("\"" + JsonSerializer.ID_KEY + "\":" + noteId);
+                    out.write(",\"" + JsonSerializer.TITLE_KEY + "\":");
+                    writeJsonString(out, title);
+                    out.write(",\"" + JsonSerializer.CONTENT_KEY + "\":\"");
+                    NoteBodies.copy(db, noteId, content);
+                    out.write("\",\"" + JsonSerializer.CREATE_TIME_KEY + "\":"
+                            + c.getLong(NOTES_STREAM_CREATE_DATE_INDEX));
+                    out.write(",\"" + JsonSerializer.MODIFY_TIME_KEY + "\":"
+                            + c.getLong(NOTES_STREAM_MODIFICATION_DATE_INDEX) + "}");
+                }
+            } finally {
+                c.close();
+            }
+        } while (more);
+
+        if (json) {
+            out.write("],\"" + JsonSerializer.NOTE_COUNT_KEY + "\":" + count + "}");
+        }
+    }
+
+    // Writes a JSON string, or null.
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        new JsonStringWriter(out).write(value);
+        out.write('"');
+    }
+
+    /**
+     * Escapes the text written through it for the inside of a JSON string, so that a note's
+     * content can be written into a string a chunk at a time.
+     */
+    private static class JsonStringWriter extends FilterWriter {
+        JsonStringWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    // Other control characters, and the line separators that JavaScript does
+                    // not allow in a string
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.write(String.format("\\u%04x", c));
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) throws IOException {
+            for (int i = offset; i < offset + count; i++) {
+                write(buffer[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int offset, int count) throws IOException {
+            for (int i = offset; i < offset + count; i++) {
+                write(str.charAt(i));
+            }
+        }
+    }
+
+    // Writes a note as text: its title, an empty line, and its content.
+    private void writeNoteText(PrintWriter pw, Cursor c) throws IOException {
+        pw.println(c.getString(READ_NOTE_TITLE_INDEX));
+        pw.println("");
+
+        // The content may be longer than the note column holds, so it is copied in chunks
+        NoteBodies.copy(mOpenHelper.getReadableDatabase(), c.getLong(READ_NOTE_ID_INDEX), pw);
+        pw.println();
+    }
+
+    /**
+     * Opens a read-only file that holds a note as text, for clients that read a note by its
+     * file descriptor. Unlike a pipe, the file has a known length, the client can seek in it,
+     * and no thread is started to fill it.
+     *
+     * The file is written in the app's cache directory the first time the note is opened, and
+     * is shared by every open until the provider's data next changes, so a burst of opens of a
+     * note queries it once. The file is written under a temporary name and renamed when it is
+     * complete, so a reader never sees part of one.
+     *
+     * @param noteId The note's _ID.
+     * @param note A cursor on the note with {@link #READ_NOTE_PROJECTION}, to write the note's
+     * title, an empty line and its content, as the text/plain stream does; or null to write
+     * the content alone.
+     * @return The file, or null if the note does not exist.
+     * @throws IOException if the file can't be written.
+     */
+    private ParcelFileDescriptor openNoteFile(long noteId, Cursor note) throws IOException {
+        long generation = mGeneration.get();
+        File directory = getNoteFilesDirectory(generation);
+        File file = new File(directory,
+                generation + "-" + noteId + (note != null ? ".txt" : ".body"));
+        try {
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            // The note has not been opened since the data last changed
+        }
+
+        File temp = File.createTempFile(NOTE_FILE_TEMP_PREFIX + file.getName() + "-", null,
+                directory);
+        try {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")));
+            boolean found = true;
+            try {
+                if (note != null) {
+                    writeNoteText(pw, note);
+                } else {
+                    found = NoteBodies.copy(mOpenHelper.getReadableDatabase(), noteId, pw);
+                }
+            } finally {
+                pw.close();
+            }
+            if (pw.checkError()) {
+                throw new IOException("Failed to write " + temp);
+            }
+            if (!found) {
+                return null;
+            }
+
+            // Opens the file before it is renamed, so that it stays open if the name is deleted
+            ParcelFileDescriptor fd =
+                    ParcelFileDescriptor.open(temp, ParcelFileDescriptor.MODE_READ_ONLY);
+            if (!temp.renameTo(file)) {
+                // The file is read once, and written again by the next open
+                Log.w(TAG, "Failed to rename " + temp + " to " + file);
+            }
+            return fd;
+        } finally {
+            // Does nothing if the file was renamed
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the directory of the note files. The first time it is used in a generation, deletes
+     * the files of earlier generations; the first time of all, deletes every file, including
+     * those left by an earlier process, whose generations were counted from the same start.
+     *
+     * Temporary files are kept, as another thread may be writing one, except for those left by
+     * an earlier process.
+     */
+    private File getNoteFilesDirectory(long generation) throws IOException {
+        File directory = new File(getContext().getCacheDir(), NOTE_FILES_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        long kept = mNoteFilesGeneration.getAndSet(generation);
+        if (kept != generation) {
+            String prefix = generation + "-";
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(NOTE_FILE_TEMP_PREFIX)) {
+                        if (kept == -1 && file.lastModified() < mCreatedMillis) {
+                            file.delete();
+                        }
+                    } else if (kept == -1 || !name.startsWith(prefix)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#openInputStream(Uri)} or
+     * {@link android.content.ContentResolver#openOutputStream(Uri)} on the URI of a note, to
+     * read or replace the whole content of the note as UTF-8 text. Either way the content is
+     * copied one chunk at a time, so a note of any length is streamed without holding all of it
+     * in memory or passing it through a Binder transaction.
+     *
+     * When reading, the content is returned in a cached file that the client can seek in; if the
+     * file can't be written, another thread writes the content into a pipe. When writing, a pipe
+     * is returned, and another thread reads the new content from the pipe and stores it in the uploads table as it
+     * arrives. The note's content is replaced, in one transaction, when the client closes the
+     * stream; if the client closes it with an error or dies, the note is not changed.
+     *
+     * @param mode "r" to read the content, "w" or "wt" to replace it.
+     * @throws FileNotFoundException if the URI is not a note's URI, the mode is not supported,
+     * or the note does not exist.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_ID) {
+            throw new FileNotFoundException("No files supported by provider at " + uri);
+        }
+        boolean write = "w".equals(mode) || "wt".equals(mode);
+        if (!write && !"r".equals(mode)) {
+            throw new FileNotFoundException("Unsupported mode " + mode + " for " + uri);
+        }
+
+        long noteId = ContentUris.parseId(uri);
+        if (DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(),
+                NOTE_BODIES_TABLE_NAME, NOTE_BODIES_NOTE_ID + "=" + noteId) == 0) {
+            throw new FileNotFoundException("Unable to query " + uri);
+        }
+        if (!write) {
+            ParcelFileDescriptor fd;
+            try {
+                fd = openNoteFile(noteId, null);
+            } catch (IOException e) {
+                // If the file can't be written, streams the content through a pipe
+                Log.w(TAG, "Failed to write the file of " + uri, e);
+                return openPipeHelper(uri, "text/plain", null, noteId, mNoteBodyWriter);
+            }
+            if (fd == null) {
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+            return fd;
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create a pipe for " + uri, e);
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+        final Uri noteUri = uri;
+        final long id = noteId;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                readNoteBody(noteUri, id, pipe[0]);
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Reads the new content of a note from the read end of a pipe, for {@link #openFile}, and
+     * replaces the note's content with it when the writer closes the pipe.
+     */
+    private void readNoteBody(Uri uri, long noteId, ParcelFileDescriptor input) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        NoteBodies.Upload upload = null;
+        boolean committed = false;
+        try {
+            Reader in = new InputStreamReader(
+                    new FileInputStream(input.getFileDescriptor()), "UTF-8");
+            upload = NoteBodies.upload(db, in);
+
+            // Throws if the writer closed the pipe with an error, or died before closing it
+            input.checkError();
+
+            db.beginTransactionNonExclusive();
+            try {
+                if (upload.commit(noteId)) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                    db.update(NotePad.Notes.TABLE_NAME, values,
+                            NotePad.Notes._ID + "=" + noteId, null);
+                    ContentHashes.update(db, Collections.singletonList(noteId));
+                    NoteSearchIndex.reindex(db, Collections.singletonList(noteId));
+                    db.setTransactionSuccessful();
+                    committed = true;
+                }
+            } finally {
+                db.endTransaction();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the content of " + uri, e);
+        } catch (SQLException e) {
+            // There is no caller to throw to on this thread
+            Log.e(TAG, "Failed to store the content of " + uri, e);
+        } finally {
+            if (upload != null && !committed) {
+                upload.discard();
+            }
+            try {
+                input.close();
+            } catch (IOException e) {
+            }
+        }
+
+        if (committed) {
+            notifyChange(uri);
+        }
+    }
+
+    /**
+     * Writes the content of the note that a pipe was opened for, for {@link #openFile}.
+     */
+    private final PipeDataWriter<Long> mNoteBodyWriter = new PipeDataWriter<Long>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, Long noteId) {
+            FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"));
+                NoteBodies.copy(mOpenHelper.getReadableDatabase(), noteId, out);
+                out.flush();
+            } catch (IOException e) {
+                // The reader closed the pipe before it read the whole note
+                Log.w(TAG, "Failed to write " + uri, e);
+            } finally {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    };
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
@@ -669,17 +1952,43 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 0);
             }
 
+            // The note's text is stored in the note bodies table, not in the notes table.
+            String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.put(ContentHashes.COLUMN_NAME_CONTENT_HASH, ContentHashes.of(
+                    values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), body));
+
             // Opens the database object in "write" mode.
             SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-            // Performs the insert and returns the ID of the new note.
-            long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                                 // if values is empty.
-                values                           // A map of column names, and the values to insert
-                                                 // into the columns.
-            );
+            // Performs the insert, stores the note's text and indexes it for full-text search, in
+            // one transaction. In a batch, the batch's transaction and statements are used.
+            long rowId;
+            Batch batch = mBatch.get();
+            if (batch != null) {
+                rowId = batch.insertNote(values, body);
+            } else {
+                db.beginTransactionNonExclusive();
+                try {
+                    // Performs the insert and returns the ID of the new note.
+                    rowId = db.insert(
+                        NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                        NotePad.Notes.COLUMN_NAME_TITLE, // A hack, SQLite sets this column value to null
+                                                         // if values is empty.
+                        values                           // A map of column names, and the values to
+                                                         // insert into the columns.
+                    );
+                    if (rowId > 0) {
+                        NoteBodies.write(db, rowId, body);
+                        NoteSearchIndex.index(db, rowId,
+                                values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                                NoteBodies.firstChunk(body));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
 
             // If the insert succeeded, the row ID exists.
             if (rowId > 0) {
@@ -687,7 +1996,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
                 // Notifies observers registered against this provider that the data changed.
-                getContext().getContentResolver().notifyChange(noteUri, null);
+                notifyChange(noteUri);
                 return noteUri;
             }
 
@@ -710,7 +2019,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
             // Performs the insert and returns the ID of the new category.
-            long rowId = db.insert(
+            Batch batch = mBatch.get();
+            long rowId = batch != null ? batch.insertCategory(values) : db.insert(
                 NotePad.Categories.TABLE_NAME,              // The table to insert into.
                 NotePad.Categories.COLUMN_NAME_NAME,        // A hack, SQLite sets this column value to null
                                                            // if values is empty.
@@ -724,7 +2034,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, rowId);
 
                 // Notifies observers registered against this provider that the data changed.
-                getContext().getContentResolver().notifyChange(categoryUri, null);
+                notifyChange(categoryUri);
                 return categoryUri;
             }
 
@@ -766,7 +2076,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
+                    notesWhere(where),         // The incoming where clause column names
                     whereArgs                  // The incoming where clause values
                 );
                 break;
@@ -795,7 +2105,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // Performs the delete.
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
+                    notesWhere(finalWhere),    // The final WHERE clause
                     whereArgs                  // The incoming where clause values.
                 );
                 break;
@@ -803,11 +2113,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the incoming pattern matches the general pattern for categories, does a delete
             // based on the incoming "where" columns and arguments.
             case CATEGORIES:
-                count = db.delete(
-                    NotePad.Categories.TABLE_NAME,  // The database table name
-                    where,                         // The incoming where clause column names
-                    whereArgs                      // The incoming where clause values
-                );
+                count = deleteCategories(db, uri, where, whereArgs);
                 break;
 
                 // If the incoming URI matches a single category ID, does the delete based on the
@@ -832,13 +2138,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
 
                 // Performs the delete.
-                count = db.delete(
-                    NotePad.Categories.TABLE_NAME,  // The database table name.
-                    finalWhere,                    // The final WHERE clause
-                    whereArgs                      // The incoming where clause values.
-                );
+                count = deleteCategories(db, uri, finalWhere, whereArgs);
                 break;
 
+            // Discards the notes staged by an import, which no observer can see.
+            case NOTES_IMPORT:
+                return NoteImports.delete(db, ContentUris.parseId(uri));
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -846,14 +2152,66 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Deleting
+         * categories changes their notes too, so the provider's URI is notified instead, which
+         * reaches the observers of the notes and of the categories at once.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        int match = sUriMatcher.match(uri);
+        notifyChange(match == CATEGORIES || match == CATEGORY_ID ? NotePad.CONTENT_URI : uri);
 
         // Returns the number of rows deleted.
         return count;
     }
 
+    /**
+     * Deletes categories and takes their notes out of them, in one transaction. The notes are
+     * moved to the category in the {@link NotePad.Categories#QUERY_PARAMETER_MOVE_NOTES_TO}
+     * query parameter of the URI, if it has one, with one UPDATE; the delete trigger of the
+     * categories table clears the category of any notes that are left.
+     */
+    private int deleteCategories(SQLiteDatabase db, Uri uri, String where, String[] whereArgs) {
+        String moveTo = uri.getQueryParameter(NotePad.Categories.QUERY_PARAMETER_MOVE_NOTES_TO);
+        long moveToId = 0;
+        if (moveTo != null) {
+            try {
+                moveToId = Long.parseLong(moveTo);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid category in URI " + uri);
+            }
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            if (moveToId != 0) {
+                String categories = "SELECT " + NotePad.Categories._ID
+                        + " FROM " + NotePad.Categories.TABLE_NAME;
+                if (!TextUtils.isEmpty(where)) {
+                    categories += " WHERE " + where;
+                }
+                SQLiteStatement move = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                        + " SET " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=" + moveToId
+                        + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IN ("
+                        + categories + ")"
+                        + " AND EXISTS (SELECT 1 FROM " + NotePad.Categories.TABLE_NAME
+                        + " WHERE " + NotePad.Categories._ID + "=" + moveToId + ")");
+                try {
+                    if (whereArgs != null) {
+                        move.bindAllArgsAsStrings(whereArgs);
+                    }
+                    move.executeUpdateDelete();
+                } finally {
+                    move.close();
+                }
+            }
+
+            int count = db.delete(NotePad.Categories.TABLE_NAME, where, whereArgs);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#update(Uri,ContentValues,String,String[])}
@@ -890,8 +2248,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
 
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
+                count = updateNotes(
+                    db,                       // The database to update.
                     values,                   // A map of column names and new values to use.
                     where,                    // The where clause column names.
                     whereArgs                 // The where clause column values to select on.
@@ -923,8 +2281,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
+                count = updateNotes(
+                    db,                       // The database to update.
                     values,                   // A map of column names and new values to use.
                     finalWhere,               // The final WHERE clause to use
                                               // placeholders for whereArgs
@@ -1004,12 +2362,500 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Updates the notes that match a WHERE clause. The note's text is written to the note bodies
+     * table, in chunks. If the title or content changes, the notes are re-indexed for full-text search in
+     * the same transaction as the update.
+     *
+     * @return The number of rows updated.
+     */
+    private int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        where = notesWhere(where);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                && !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+        }
+
+        ContentValues noteValues = new ContentValues(values);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        db.beginTransactionNonExclusive();
+        try {
+            // Finds the notes before the update, which may change the columns the WHERE tests
+            List<Long> noteIds = new ArrayList<Long>();
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                    where, whereArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    noteIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+
+            int count = noteIds.size();
+            if (noteValues.size() > 0) {
+                count = db.update(NotePad.Notes.TABLE_NAME, noteValues, where, whereArgs);
+            }
+
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                NoteBodies.BodyWriter writer = new NoteBodies.BodyWriter(db);
+                try {
+                    for (Long id : noteIds) {
+                        writer.write(id, body);
+                    }
+                } finally {
+                    writer.close();
+                }
+            }
+
+            ContentHashes.update(db, noteIds);
+            NoteSearchIndex.reindex(db, noteIds);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Rewrites a WHERE clause on the notes so that it can be run against the notes table alone.
+     * A clause that tests the note's text is run against the notes joined with their bodies, and
+     * selects the IDs of the notes it matches.
+     */
+    private static String notesWhere(String where) {
+        if (!mentionsColumn(NotePad.Notes.COLUMN_NAME_NOTE, where)
+                && !mentionsColumn(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, where)) {
+            return where;
+        }
+        return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " FROM " + NOTES_WITH_BODIES_TABLES
+                + " WHERE (" + where + "))";
+    }
+
+    // Parses a number in the paging parameters of a query URI.
+    private static long parsePageNumber(String number, Uri uri) {
+        try {
+            return Long.parseLong(number.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging parameter in URI " + uri);
+        }
+    }
+
+    // Returns true if a query reads a column: if its projection includes the column, or is null
+    // and so includes every column, or its selection or sort order names the column.
+    private static boolean usesColumn(String column, String[] projection, String selection,
+            String sortOrder) {
+        if (projection == null || Arrays.asList(projection).contains(column)) {
+            return true;
+        }
+        return mentionsColumn(column, selection) || mentionsColumn(column, sortOrder);
+    }
+
+    // Returns true if a clause of a query names a column.
+    private static boolean mentionsColumn(String column, String clause) {
+        return clause != null
+                && Pattern.compile("\\b" + column + "\\b").matcher(clause).find();
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}. Inserts all of
+     * the rows in one transaction, using one compiled statement for the table, and sends one
+     * change notification when the transaction commits. If any row fails, none are inserted.
+     *
+     * @param uri The URI of the table to insert into, either notes or categories, or the URI
+     * of an import, whose notes are staged without notifying anyone.
+     * @param values The rows to insert.
+     * @return The number of rows inserted.
+     * @throws IllegalArgumentException if the URI is not the notes, categories or an import
+     * URI, or a row has a column the table does not have.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        if (match == NOTES_IMPORT) {
+            // Staged notes are not seen until they are merged, so no one is notified
+            NoteImports.stage(mOpenHelper.getWritableDatabase(), ContentUris.parseId(uri), values);
+            return values.length;
+        }
+        if (match != NOTES && match != CATEGORIES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        Batch batch = startBatch();
+        try {
+            for (ContentValues row : values) {
+                insert(uri, row);
+            }
+            batch.setSuccessful();
+        } finally {
+            finishBatch(batch);
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}. Applies all of the
+     * operations in one transaction, so that either all of them take effect or none do. Inserts
+     * reuse one compiled statement per table, and the change notifications of the operations
+     * are coalesced into one per table, sent when the transaction commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Batch batch = startBatch();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            batch.setSuccessful();
+            return results;
+        } finally {
+            finishBatch(batch);
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}. Supports
+     * {@link NotePad.BatchQueries#METHOD_QUERY}, {@link NotePad.Notes#METHOD_SET_STATUS},
+     * {@link NotePad.Notes#METHOD_BEGIN_IMPORT}, {@link NotePad.Notes#METHOD_FINISH_IMPORT} and
+     * {@link NotePad.QueryCacheStats#METHOD_GET}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.BatchQueries.METHOD_QUERY.equals(method)) {
+            return queryBatch(extras);
+        } else if (NotePad.Notes.METHOD_SET_STATUS.equals(method)) {
+            return setStatus(arg, extras);
+        } else if (NotePad.Notes.METHOD_BEGIN_IMPORT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(NotePad.Notes.KEY_IMPORT_ID, NoteImports.newImportId());
+            return result;
+        } else if (NotePad.Notes.METHOD_FINISH_IMPORT.equals(method)) {
+            return finishImport(arg, extras);
+        } else if (NotePad.QueryCacheStats.METHOD_GET.equals(method)) {
+            return mQueryCache.getStats();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Runs several queries and returns all of their rows at once, so that a screen can load
+     * everything it shows with one call to the provider instead of one per query. Each result
+     * is copied into a CursorWindow; a result that does not fit in one window is returned
+     * without rows, and the client queries it on its own.
+     *
+     * @throws IllegalArgumentException if the batch has no queries, or a query has an unknown
+     * URI.
+     */
+    private Bundle queryBatch(Bundle extras) {
+        String method = NotePad.BatchQueries.METHOD_QUERY;
+        ArrayList<Bundle> queries = extras == null ? null
+                : extras.<Bundle>getParcelableArrayList(NotePad.BatchQueries.KEY_QUERIES);
+        if (queries == null) {
+            throw new IllegalArgumentException("No queries in " + method);
+        }
+
+        ArrayList<Bundle> results = new ArrayList<Bundle>(queries.size());
+        for (Bundle q : queries) {
+            Uri uri = q.getParcelable(NotePad.BatchQueries.KEY_URI);
+            if (uri == null) {
+                throw new IllegalArgumentException("No URI in query of " + method);
+            }
+            Cursor c = query(uri,
+                    q.getStringArray(NotePad.BatchQueries.KEY_PROJECTION),
+                    q.getString(NotePad.BatchQueries.KEY_SELECTION),
+                    q.getStringArray(NotePad.BatchQueries.KEY_SELECTION_ARGS),
+                    q.getString(NotePad.BatchQueries.KEY_SORT_ORDER));
+
+            Bundle result = new Bundle();
+            try {
+                result.putStringArray(NotePad.BatchQueries.KEY_COLUMNS, c.getColumnNames());
+                CursorWindow window = new CursorWindow(uri.toString());
+                new CrossProcessCursorWrapper(c).fillWindow(0, window);
+                if (window.getNumRows() == c.getCount()) {
+                    result.putParcelable(NotePad.BatchQueries.KEY_WINDOW, window);
+                } else {
+                    window.close();
+                }
+            } finally {
+                c.close();
+            }
+            results.add(result);
+        }
+
+        Bundle reply = new Bundle();
+        reply.putParcelableArrayList(NotePad.BatchQueries.KEY_RESULTS, results);
+        return reply;
+    }
+
+    /**
+     * Sets or toggles the status of a set of notes with one UPDATE, so that no other write can
+     * come between reading a note's status and writing it back. Observers of the notes are
+     * notified once for all of the notes.
+     *
+     * @param status The new status, or null to toggle the status of each note.
+     * @throws IllegalArgumentException if there are no note IDs, or the status is not a
+     * status value.
+     */
+    private Bundle setStatus(String status, Bundle extras) {
+        long[] noteIds = extras == null ? null : extras.getLongArray(NotePad.Notes.KEY_NOTE_IDS);
+        if (noteIds == null) {
+            throw new IllegalArgumentException("No note IDs in " + NotePad.Notes.METHOD_SET_STATUS);
+        }
+
+        String newStatus;
+        if (status == null) {
+            // Swaps the two status values
+            newStatus = (NotePad.Notes.STATUS_PENDING + NotePad.Notes.STATUS_COMPLETED) + "-"
+                    + NotePad.Notes.COLUMN_NAME_STATUS;
+        } else if (status.equals(Integer.toString(NotePad.Notes.STATUS_PENDING))
+                || status.equals(Integer.toString(NotePad.Notes.STATUS_COMPLETED))) {
+            newStatus = status;
+        } else {
+            throw new IllegalArgumentException("Invalid status " + status);
+        }
+
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID + " IN (");
+        for (int i = 0; i < noteIds.length; i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(noteIds[i]);
+        }
+        where.append(')');
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        long completed;
+        db.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                    + " SET " + NotePad.Notes.COLUMN_NAME_STATUS + "=" + newStatus
+                    + " WHERE " + where);
+            try {
+                count = update.executeUpdateDelete();
+            } finally {
+                update.close();
+            }
+            completed = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + where + " AND "
+                    + NotePad.Notes.COLUMN_NAME_STATUS + "=" + NotePad.Notes.STATUS_COMPLETED,
+                    null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_COUNT, count);
+        result.putInt(NotePad.Notes.KEY_COMPLETED_COUNT, (int) completed);
+        return result;
+    }
+
+    /**
+     * Merges the notes staged by an import into the notes, in one transaction, and notifies
+     * the observers of the notes once.
+     *
+     * @throws IllegalArgumentException if the import ID is not a number, or the match mode is
+     * unknown.
+     */
+    private Bundle finishImport(String importId, Bundle extras) {
+        long id;
+        try {
+            id = Long.parseLong(importId);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid import ID " + importId);
+        }
+
+        String match = extras == null ? null : extras.getString(NotePad.Notes.KEY_IMPORT_MATCH);
+        boolean matchContent;
+        if (match == null || NotePad.Notes.IMPORT_MATCH_ID.equals(match)) {
+            matchContent = false;
+        } else if (NotePad.Notes.IMPORT_MATCH_CONTENT.equals(match)) {
+            matchContent = true;
+        } else {
+            throw new IllegalArgumentException("Invalid import match " + match);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int[] counts;
+        db.beginTransactionNonExclusive();
+        try {
+            counts = NoteImports.merge(db, id, matchContent);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (counts[0] > counts[2]) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_COUNT, counts[0]);
+        result.putInt(NotePad.Notes.KEY_UPDATED_COUNT, counts[1]);
+        result.putInt(NotePad.Notes.KEY_SKIPPED_COUNT, counts[2]);
+        return result;
+    }
+
+    // Begins a batch on the current thread, in a new transaction.
+    private Batch startBatch() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        Batch batch = new Batch(db);
+        mBatch.set(batch);
+        return batch;
+    }
+
+    // Ends a batch, committing its transaction if it succeeded and then sending its notifications.
+    private void finishBatch(Batch batch) {
+        mBatch.remove();
+        try {
+            batch.close();
+        } finally {
+            batch.mDb.endTransaction();
+        }
+
+        if (batch.mSuccessful) {
+            mGeneration.incrementAndGet();
+            mChangeNotifier.notifyChange(batch.mChangedUris);
+        }
+    }
+
+    /**
+     * Notifies observers that the data at a URI changed, after the change is committed. In a
+     * batch, the notification is held back and coalesced with the others for the same table
+     * until the batch commits. Otherwise it is merged with the notifications of the writes that
+     * follow within {@link ChangeNotifier#DELAY_MILLIS}.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            // A write in a transaction that the caller of the provider began is committed
+            // later, out of the provider's sight, so the generation can't tell the results
+            // that were read before the commit from those read after it
+            if (mOpenHelper.getWritableDatabase().inTransaction()) {
+                mQueryCache.disable();
+            }
+            mGeneration.incrementAndGet();
+            mChangeNotifier.notifyChange(uri);
+            return;
+        }
+
+        // Observers of a table are notified of changes to any row in it
+        int match = sUriMatcher.match(uri);
+        if (uri.equals(NotePad.CONTENT_URI)) {
+            batch.mChangedUris.add(NotePad.CONTENT_URI);
+        } else if (match == CATEGORIES || match == CATEGORY_ID) {
+            batch.mChangedUris.add(NotePad.Categories.CONTENT_URI);
+        } else {
+            batch.mChangedUris.add(NotePad.Notes.CONTENT_URI);
+        }
+    }
+
+    /**
+     * The state of a batch of writes on one thread: its transaction, the insert statements,
+     * which are compiled the first time they are needed and reused for every row, and the tables
+     * whose observers are notified when the batch commits.
+     */
+    private static class Batch {
+        final SQLiteDatabase mDb;
+        final Set<Uri> mChangedUris = new HashSet<Uri>();
+        boolean mSuccessful;
+
+        private SQLiteStatement mInsertNote;
+        private NoteBodies.BodyWriter mBodies;
+        private SQLiteStatement mInsertCategory;
+        private NoteSearchIndex.Writer mSearchIndex;
+
+        Batch(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        // Marks the batch's transaction as successful, so that it commits.
+        void setSuccessful() {
+            mDb.setTransactionSuccessful();
+            mSuccessful = true;
+        }
+
+        // Inserts a note and its text, and indexes the text, returning the new row ID.
+        long insertNote(ContentValues values, String body) {
+            if (mInsertNote == null) {
+                mInsertNote = compileInsert(NotePad.Notes.TABLE_NAME, INSERT_NOTE_COLUMNS);
+                mBodies = new NoteBodies.BodyWriter(mDb);
+                mSearchIndex = new NoteSearchIndex.Writer(mDb);
+            }
+            long rowId = insert(mInsertNote, INSERT_NOTE_COLUMNS, values);
+            mBodies.write(rowId, body);
+            mSearchIndex.index(rowId, values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                    NoteBodies.firstChunk(body));
+            return rowId;
+        }
+
+        // Inserts a category, returning the new row ID.
+        long insertCategory(ContentValues values) {
+            if (mInsertCategory == null) {
+                mInsertCategory = compileInsert(NotePad.Categories.TABLE_NAME,
+                        INSERT_CATEGORY_COLUMNS);
+            }
+            return insert(mInsertCategory, INSERT_CATEGORY_COLUMNS, values);
+        }
+
+        private SQLiteStatement compileInsert(String table, String[] columns) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            return mDb.compileStatement(sql.append(')').toString());
+        }
+
+        // Binds a row to an insert statement and runs it. Columns not in the row are null.
+        private static long insert(SQLiteStatement statement, String[] columns,
+                ContentValues values) {
+            int bound = 0;
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                if (values.containsKey(columns[i])) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                    bound++;
+                }
+            }
+            if (bound < values.size()) {
+                throw new IllegalArgumentException("Unknown column in " + values);
+            }
+            return statement.executeInsert();
+        }
+
+        void close() {
+            if (mInsertNote != null) {
+                mInsertNote.close();
+                mBodies.close();
+                mSearchIndex.close();
+            }
+            if (mInsertCategory != null) {
+                mInsertCategory.close();
+            }
+        }
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -1023,34 +2869,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 
     /**
-     * Toggles the todo status of a note
-     *
-     * @param noteId The ID of the note to toggle
-     * @return The number of rows affected
+     * A test package that writes to the database directly calls this afterwards, since the
+     * provider does not see those writes. The provider then discards the query results and
+     * note files it kept from before them.
      */
-    public int toggleTodoStatus(long noteId) {
-        // Get the current status of the note
-        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
-        String[] projection = { NotePad.Notes.COLUMN_NAME_STATUS };
-        Cursor cursor = query(noteUri, projection, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            int currentStatus = cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_STATUS));
-            cursor.close();
-
-            // Toggle the status
-            int newStatus = (currentStatus == NotePad.Notes.STATUS_PENDING) ? 
-                    NotePad.Notes.STATUS_COMPLETED : NotePad.Notes.STATUS_PENDING;
-
-            // Update the note with the new status
-            ContentValues values = new ContentValues();
-            values.put(NotePad.Notes.COLUMN_NAME_STATUS, newStatus);
-            return update(noteUri, values, null, null);
-        } else {
-            if (cursor != null) {
-                cursor.close();
-            }
-            return 0;
-        }
+    void dataChangedForTest() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the SQL that a query of the given URI runs, for tests of its query plan.
+     */
+    String buildQueryForTest(Uri uri, String[] projection, String selection, String sortOrder) {
+        return buildQuery(uri, projection, selection, sortOrder, null);
+    }
+
+    /**
+     * A test package can call this to write the notes of a URI as JSON, as the notes stream
+     * does, to a writer of its own that can change the notes between two pages.
+     */
+    void writeNotesForTest(Writer out, Uri uri) throws IOException {
+        writeNotes(out, uri, true);
     }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maintains the full-text index over the titles and contents of the notes.
+ *
+ * Chinese, Japanese and Korean text has no spaces between words, so the FTS tokenizers would
+ * index a whole sentence as one token and could not find a word inside it. The text is therefore
+ * segmented here before it reaches the index: letters and digits of other scripts keep their
+ * words, while every run of CJK characters is indexed as its overlapping bigrams, followed by
+ * its last character on its own. A CJK query is then the phrase of its own bigrams, which
+ * matches exactly the notes that contain it as a substring, and a single character is a prefix
+ * query. A query that mixes CJK and other letters without a space keeps the last character of
+ * each CJK run that other tokens follow, so that its tokens are laid out as the note's are.
+ * All are answered from the index without scanning the notes table.
+ */
+public class NoteSearchIndex {
+
+    /**
+     * The FTS4 table that holds the segmented text. Its docid is the note's _ID.
+     */
+    static final String TABLE_NAME = "notes_fts";
+
+    // This class cannot be instantiated
+    private NoteSearchIndex() {
+    }
+
+    /**
+     * The lengths of the prefix queries that the index keeps a prefix index for, in UTF-8
+     * bytes: one to three letters of a word being typed, and a single CJK character, which is
+     * three bytes and is looked up among the bigrams that start with it.
+     */
+    private static final String PREFIX_LENGTHS = "1,2,3";
+
+    /**
+     * Creates the index table and the trigger that drops a note's entry when the note is
+     * deleted. Inserts and updates are indexed by the provider, which segments the text.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4("
+                + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                + "prefix=\"" + PREFIX_LENGTHS + "\""
+                + ");");
+        createTriggers(db);
+    }
+
+    /**
+     * Creates the trigger on the notes table that keeps the index in step with it.
+     */
+    static void createTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER notes_fts_ad AFTER DELETE ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN "
+                + "DELETE FROM " + TABLE_NAME + " WHERE docid=old." + NotePad.Notes._ID + ";"
+                + " END;");
+    }
+
+    /**
+     * Indexes every note in the notes table, replacing any existing entries.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_NAME);
+        reindex(db, null, null);
+    }
+
+    /**
+     * Re-indexes the given notes from their current title and content. Notes that no longer
+     * exist are ignored; their entries were removed by the delete trigger.
+     */
+    static void reindex(SQLiteDatabase db, Collection<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            return;
+        }
+
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID + " IN (");
+        boolean first = true;
+        for (Long id : noteIds) {
+            if (!first) {
+                where.append(',');
+            }
+            where.append(id.longValue());
+            first = false;
+        }
+        where.append(')');
+        reindex(db, where.toString(), null);
+    }
+
+    private static void reindex(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePadProvider.NOTES_WITH_BODIES_TABLES,
+                new String[] {
+                        NotePad.Notes._ID,
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_NOTE },
+                where, whereArgs, null, null, null);
+        Writer writer = new Writer(db);
+        try {
+            while (c.moveToNext()) {
+                writer.index(c.getLong(0), c.getString(1), c.getString(2));
+            }
+        } finally {
+            c.close();
+            writer.close();
+        }
+    }
+
+    /**
+     * Indexes a single note, replacing its existing entry if it has one.
+     */
+    static void index(SQLiteDatabase db, long noteId, String title, String note) {
+        Writer writer = new Writer(db);
+        try {
+            writer.index(noteId, title, note);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Indexes notes with statements that are compiled once, for callers that index many notes
+     * in one transaction. The writer must be closed when done.
+     */
+    static class Writer {
+        private final SQLiteStatement mDelete;
+        private final SQLiteStatement mInsert;
+
+        Writer(SQLiteDatabase db) {
+            mDelete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE docid=?");
+            mInsert = db.compileStatement("INSERT INTO " + TABLE_NAME + "(docid,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + "," + NotePad.Notes.COLUMN_NAME_NOTE + ")"
+                    + " VALUES (?,?,?)");
+        }
+
+        /**
+         * Indexes a note, replacing its existing entry if it has one.
+         */
+        void index(long noteId, String title, String note) {
+            mDelete.bindLong(1, noteId);
+            mDelete.executeUpdateDelete();
+
+            mInsert.bindLong(1, noteId);
+            mInsert.bindString(2, segment(title));
+            mInsert.bindString(3, segment(note));
+            mInsert.executeInsert();
+        }
+
+        void close() {
+            mDelete.close();
+            mInsert.close();
+        }
+    }
+
+    /**
+     * Converts text into the space-separated tokens that are stored in the index.
+     *
+     * @param text The text of a title or note, may be null.
+     * @return The tokens of the text, never null.
+     */
+    static String segment(String text) {
+        StringBuilder out = new StringBuilder();
+        if (text != null) {
+            for (String token : tokenize(text, false)) {
+                out.append(token).append(' ');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Converts the search text of a {@link NotePad.Notes#CONTENT_SEARCH_URI} into an FTS MATCH
+     * expression. Each whitespace-separated word becomes a phrase of its tokens, so all of the
+     * words must match and the user's text is never parsed as FTS query syntax. A phrase that
+     * ends in a word of letters or digits, or in a single CJK character, matches it as a prefix.
+     *
+     * @param searchText The text the user typed, may be null.
+     * @return The MATCH expression, or null if the text contains nothing searchable.
+     */
+    static String buildMatchQuery(String searchText) {
+        if (searchText == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String word : searchText.trim().split("\\s+")) {
+            List<String> tokens = tokenize(word, true);
+            if (tokens.isEmpty()) {
+                // Words made only of separators are indexed as nothing
+                continue;
+            }
+
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"');
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) {
+                    match.append(' ');
+                }
+                match.append(tokens.get(i));
+            }
+
+            // A bigram is matched exactly; anything else may be the start of a longer token
+            String last = tokens.get(tokens.size() - 1);
+            if (!(isCjk(last.codePointAt(0)) && last.codePointCount(0, last.length()) == 2)) {
+                match.append('*');
+            }
+            match.append('"');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Splits text into tokens. Characters that are neither letters nor digits separate tokens.
+     * A run of CJK characters produces its overlapping bigrams. When indexing, the run's last
+     * character is also emitted on its own, so that every character of the run starts some
+     * token. A query run does the same unless it ends the text, since the tokens after it must
+     * follow that character to be adjacent to them in the index; a query run of one character
+     * that ends the text produces just that character, and one of more characters just its
+     * bigrams.
+     */
+    private static List<String> tokenize(String text, boolean forQuery) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        int previousCjk = -1;
+        int runLength = 0;
+
+        int i = 0;
+        while (i < text.length()) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (isCjk(cp)) {
+                if (word.length() > 0) {
+                    tokens.add(word.toString());
+                    word.setLength(0);
+                }
+                if (previousCjk != -1) {
+                    tokens.add(new StringBuilder().appendCodePoint(previousCjk)
+                            .appendCodePoint(cp).toString());
+                }
+                previousCjk = cp;
+                runLength++;
+                continue;
+            }
+
+            if (previousCjk != -1) {
+                endCjkRun(tokens, previousCjk, runLength, false);
+                previousCjk = -1;
+                runLength = 0;
+            }
+
+            if (Character.isLetterOrDigit(cp)) {
+                word.appendCodePoint(Character.toLowerCase(cp));
+            } else if (word.length() > 0) {
+                tokens.add(word.toString());
+                word.setLength(0);
+            }
+        }
+
+        if (previousCjk != -1) {
+            endCjkRun(tokens, previousCjk, runLength, forQuery);
+        } else if (word.length() > 0) {
+            tokens.add(word.toString());
+        }
+        return tokens;
+    }
+
+    // Ends a run of CJK characters. The last character of a query run that ends the text is
+    // left out unless it is the whole run, so that the run's last bigram can be longer text.
+    private static void endCjkRun(List<String> tokens, int last, int runLength,
+            boolean endsQuery) {
+        if (!endsQuery || runLength == 1) {
+            tokens.add(new String(Character.toChars(last)));
+        }
+    }
+
+    private static boolean isCjk(int cp) {
+        if (Character.isIdeographic(cp)) {
+            return true;
+        }
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(cp);
+        return block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES
+                || block == Character.UnicodeBlock.HANGUL_JAMO
+                || block == Character.UnicodeBlock.HANGUL_COMPATIBILITY_JAMO;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.example.android.notepad;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
@@ -24,6 +25,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
@@ -36,14 +38,14 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import android.text.format.DateUtils;
 import android.util.Log;
-import android.view.ContextMenu;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import android.view.View;
-import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
@@ -63,10 +65,8 @@ import com.example.android.notepad.NotePad.Notes;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
@@ -88,7 +88,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
             Notes.COLUMN_NAME_TITLE, // 1
             Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
             Notes.COLUMN_NAME_STATUS, // 3
-            Notes.COLUMN_NAME_CATEGORY_ID // 4 - 新增分类ID字段
+            Notes.COLUMN_NAME_CATEGORY_ID, // 4 - 新增分类ID字段
+            Notes.COLUMN_NAME_CATEGORY_NAME // 5 - 分类名称，由provider联表查询返回
     };
 
     /** The index of the title column */
@@ -99,6 +100,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
     private static final int COLUMN_INDEX_STATUS = 3;
     /** The index of the category id column */
     private static final int COLUMN_INDEX_CATEGORY_ID = 4;
+    /** The index of the category name column */
+    private static final int COLUMN_INDEX_CATEGORY_NAME = 5;
 
     private ListView mListView; // 添加ListView引用
     private SearchView mSearchView;
@@ -112,9 +115,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
     private static final int PERMISSION_REQUEST_CODE = 1001;
     private Toolbar mToolbar; // 添加Toolbar引用
     
-    // 添加分类数据源和缓存
+    // 添加分类数据源
     private CategoryDataSource mCategoryDataSource;
-    private Map<Long, String> mCategoryCache;
     
 
 
@@ -192,19 +194,9 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
             if (categoryLabel != null) {
                 long categoryId = cursor.getLong(COLUMN_INDEX_CATEGORY_ID);
                 if (categoryId > 0) {
-                    // Try to get category name from cache first
-                    String categoryName = mCategoryCache.get(categoryId);
-                    
-                    // If not in cache, try to fetch from database
-                    if (categoryName == null) {
-                        Category category = mCategoryDataSource.getCategoryById(categoryId);
-                        if (category != null) {
-                            categoryName = category.getName();
-                            // Add to cache for future use
-                            mCategoryCache.put(categoryId, categoryName);
-                        }
-                    }
-                    
+                    // The category name is joined into the list query, so no lookup is needed
+                    String categoryName = cursor.getString(COLUMN_INDEX_CATEGORY_NAME);
+
                     // Display category name if found
                     if (categoryName != null) {
                         categoryLabel.setText(categoryName);
@@ -240,8 +232,9 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
         // 获取ListView引用
         mListView = (ListView) findViewById(R.id.notes_list);
         
-        // 为ListView注册上下文菜单
-        registerForContextMenu(mListView);
+        // 长按笔记进入多选模式，选中的笔记可以一起删除、移动分类或切换状态
+        mListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        mListView.setMultiChoiceModeListener(new NotesChoiceListener());
 
         // The user does not need to hold down the key to use menu shortcuts.
         setDefaultKeyMode(DEFAULT_KEYS_SHORTCUT);
@@ -266,10 +259,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
         mAdapter = new NotesCursorAdapter(this, null);
         mListView.setAdapter(mAdapter);
 
-        // Initialize category data source and cache
+        // Initialize category data source
         mCategoryDataSource = new CategoryDataSource(this);
-        mCategoryCache = new HashMap<>();
-        initializeCategoryCache();
 
         // Check and request permissions
         checkAndRequestPermissions();
@@ -296,31 +287,18 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
         // This will be implemented when we modify the layout to include the spinner
     }
     
-    /**
-     * Initialize category cache with all available categories
-     */
-    private void initializeCategoryCache() {
-        // Clear existing cache
-        mCategoryCache.clear();
-        
-        // Get all categories
-        List<Category> categories = mCategoryDataSource.getAllCategories();
-        
-        // Populate cache
-        for (Category category : categories) {
-            mCategoryCache.put(category.getId(), category.getName());
-        }
-    }
-
     /**
      * Setup category filter menu with all available categories
      */
     private void setupCategoryFilterMenu(Menu menu) {
-        // Get category data source
-        CategoryDataSource categoryDataSource = new CategoryDataSource(this);
-        
-        // Get all categories
-        List<Category> categories = categoryDataSource.getAllCategories();
+        // Get all categories with their note counts, which are read from the note counters,
+        // and the total count with one call to the provider
+        BatchQuery batch = new BatchQuery();
+        int categoriesQuery = CategoryDataSource.addAllCategoriesWithCountsQuery(batch);
+        int totalQuery = CategoryDataSource.addTotalNotesCountQuery(batch);
+        Cursor[] results = batch.run(getContentResolver());
+        List<Category> categories = CategoryDataSource.readCategories(results[categoriesQuery]);
+        int totalCount = CategoryDataSource.readNoteCount(results[totalQuery]);
         
         // Find the category filter menu item
         MenuItem moreItem = menu.findItem(R.id.action_more);
@@ -338,7 +316,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
                         subMenu.clear();
                         
                         // Add "All" option
-                        MenuItem allItem = subMenu.add(Menu.NONE, R.id.menu_show_all, Menu.NONE, "所有笔记");
+                        MenuItem allItem = subMenu.add(Menu.NONE, R.id.menu_show_all, Menu.NONE,
+                                "所有笔记 (" + totalCount + ")");
                         allItem.setCheckable(true);
                         if (mCurrentCategoryId == 0) {
                             allItem.setChecked(true);
@@ -346,7 +325,8 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
                         
                         // Add categories
                         for (Category category : categories) {
-                            MenuItem item = subMenu.add(Menu.NONE, Menu.FIRST + (int) category.getId(), Menu.NONE, category.getName());
+                            MenuItem item = subMenu.add(Menu.NONE, Menu.FIRST + (int) category.getId(), Menu.NONE,
+                                    category.getName() + " (" + category.getNoteCount() + ")");
                             item.setCheckable(true);
                             if (mCurrentCategoryId == category.getId()) {
                                 item.setChecked(true);
@@ -585,141 +565,138 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
     }
 
     /**
-     * This method is called when the user context-clicks a note in the list. NotesList registers
-     * itself as the handler for context menus in its ListView (this is done in onCreate()).
-     *
-     * The only available options are COPY and DELETE.
-     *
-     * Context-click is equivalent to long-press.
-     *
-     * @param menu A ContexMenu object to which items should be added.
-     * @param view The View for which the context menu is being constructed.
-     * @param menuInfo Data associated with view.
-     * @throws ClassCastException
+     * Handles the selection mode of the notes list. A long-press on a note starts it; the
+     * user can then check more notes and act on all of them at once. Each action changes all
+     * of the checked notes in one call to the provider, which commits them in one transaction
+     * and notifies the list once.
      */
-    @Override
-    public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
-
-        // The data from the menu item.
-        AdapterView.AdapterContextMenuInfo info;
-
-        // Tries to get the position of the item in the ListView that was long-pressed.
-        try {
-            // Casts the incoming data object into the type for AdapterView objects.
-            info = (AdapterView.AdapterContextMenuInfo) menuInfo;
-        } catch (ClassCastException e) {
-            // If the menu object can't be cast, logs an error.
-            Log.e(TAG, "bad menuInfo", e);
-            return;
-        }
+    private class NotesChoiceListener implements AbsListView.MultiChoiceModeListener {
 
-        Cursor cursor = mAdapter.getCursor();
-        if (cursor == null || !cursor.moveToPosition(info.position)) {
-            return;
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            // Inflate menu from XML resource
+            mode.getMenuInflater().inflate(R.menu.list_context_menu, menu);
+            return true;
         }
 
-        // Inflate menu from XML resource
-        MenuInflater inflater = getMenuInflater();
-        inflater.inflate(R.menu.list_context_menu, menu);
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            // A single note can be opened
+            menu.findItem(R.id.context_open).setVisible(mListView.getCheckedItemCount() == 1);
+            return true;
+        }
 
-        // Sets the menu header to be the title of the selected note.
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
-    }
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                boolean checked) {
+            mode.setTitle(getString(R.string.notes_selected, mListView.getCheckedItemCount()));
+            mode.invalidate();
+        }
 
-    /**
-     * This method is called when the user selects an item from the context menu
-     * (see onCreateContextMenu()). The only menu items that are actually handled are DELETE and
-     * COPY. Anything else is an alternative option, for which default handling should be done.
-     *
-     * @param item The selected menu item
-     * @return True if the menu item was DELETE, and no default processing is need, otherwise false,
-     * which triggers the default handling of the item.
-     * @throws ClassCastException
-     */
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-        // The data from the menu item.
-        AdapterView.AdapterContextMenuInfo info;
-
-        /*
-         * Gets the extra info from the menu item. When an note in the Notes list is long-pressed, a
-         * context menu appears. The menu items for the menu automatically get the data
-         * associated with the note that was long-pressed. The data comes from the provider that
-         * backs the list.
-         *
-         * The note's data is passed to the context menu creation routine in a ContextMenuInfo
-         * object.
-         *
-         * When one of the context menu items is clicked, the same data is passed, along with the
-         * note ID, to onContextItemSelected() via the item parameter.
-         */
-        try {
-            // Casts the data object in the item into the type for AdapterView objects.
-            info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
-        } catch (ClassCastException e) {
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            long[] ids = mListView.getCheckedItemIds();
+            if (ids.length == 0) {
+                return false;
+            }
 
-            // If the object can't be cast, logs an error
-            Log.e(TAG, "bad menuInfo", e);
+            int itemId = item.getItemId();
+            if (itemId == R.id.context_open) {
+                Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), ids[0]);
+                Intent editIntent = new Intent(Intent.ACTION_EDIT, noteUri);
+                editIntent.setClass(NotesList.this, NoteEditor.class);
+                startActivity(editIntent);
+            } else if (itemId == R.id.context_delete) {
+                deleteNotes(ids);
+            } else if (itemId == R.id.context_toggle_status) {
+                toggleStatus(ids);
+            } else if (itemId == R.id.context_move_to_category) {
+                // The action mode ends when a category is chosen
+                showMoveToCategoryDialog(mode, ids);
+                return true;
+            } else {
+                return false;
+            }
+            mode.finish();
+            return true;
+        }
 
-            // Triggers default processing of the menu item.
-            return false;
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
         }
+    }
 
-        Cursor cursor = mAdapter.getCursor();
-        if (cursor == null || !cursor.moveToPosition(info.position)) {
-            return false;
+    // Builds a WHERE clause that selects the notes with the given IDs.
+    private static String notesWhere(long[] ids) {
+        StringBuilder where = new StringBuilder(Notes._ID + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(ids[i]);
         }
+        return where.append(')').toString();
+    }
 
-        long id = cursor.getLong(0); // ID is at index 0
-        Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), id);
+    /**
+     * Deletes notes with one delete from the provider. The list's loader reloads when the
+     * provider notifies it of the change.
+     */
+    private void deleteNotes(long[] ids) {
+        int rowsDeleted = getContentResolver().delete(Notes.CONTENT_URI, notesWhere(ids), null);
+        if (rowsDeleted > 0) {
+            Toast.makeText(this, rowsDeleted == 1 ? getString(R.string.note_deleted)
+                    : getString(R.string.notes_deleted, rowsDeleted), Toast.LENGTH_SHORT).show();
+        }
+    }
 
-        /*
-         * Gets the menu item's ID and compares it to known actions.
-         */
-        int itemId = item.getItemId();
-        
-        // 使用if-else替换switch-case以解决常量表达式问题
-        if (itemId == R.id.context_open) {
-            // 修复Intent调用非导出组件问题
-            Intent editIntent = new Intent(Intent.ACTION_EDIT, noteUri);
-            editIntent.setClass(this, NoteEditor.class);
-            startActivity(editIntent);
-            return true;
-        // Copy functionality disabled as per requirements
-        } else if (itemId == R.id.context_delete) {
-            // Deletes the note from the provider by passing in a URI in note ID format.
-            int rowsDeleted = getContentResolver().delete(
-                    noteUri,  // The URI of the provider
-                    null,     // No where clause is needed, since only a single note ID is being
-                    null      // No where clause is used, so no where arguments are needed.
-            );
+    /**
+     * Toggles the todo status of each of the notes, in one statement in the provider.
+     */
+    private void toggleStatus(long[] ids) {
+        Bundle result = NoteDataSource.setStatus(getContentResolver(), ids, null);
+        int rowsUpdated = result.getInt(Notes.KEY_COUNT);
+        if (rowsUpdated == 1) {
+            Toast.makeText(this,
+                    result.getInt(Notes.KEY_COMPLETED_COUNT) > 0 ?
+                            R.string.note_marked_complete : R.string.note_marked_incomplete,
+                    Toast.LENGTH_SHORT).show();
+        } else if (rowsUpdated > 1) {
+            Toast.makeText(this, getString(R.string.notes_status_toggled, rowsUpdated,
+                    result.getInt(Notes.KEY_COMPLETED_COUNT)), Toast.LENGTH_SHORT).show();
+        }
+    }
 
-            if (rowsDeleted > 0) {
-                Toast.makeText(this, R.string.note_deleted, Toast.LENGTH_SHORT).show();
-                restartLoader();
-            }
-            return true;
-        } else if (itemId == R.id.context_toggle_status) {
-            // Toggle the todo status of the note
-            ContentValues values = new ContentValues();
-            int currentStatus = cursor.getInt(COLUMN_INDEX_STATUS);
-            int newStatus = (currentStatus == Notes.STATUS_COMPLETED) ?
-                    Notes.STATUS_PENDING : Notes.STATUS_COMPLETED;
-
-            values.put(Notes.COLUMN_NAME_STATUS, newStatus);
-            int rowsUpdated = getContentResolver().update(noteUri, values, null, null);
-
-            if (rowsUpdated > 0) {
-                Toast.makeText(this,
-                        newStatus == Notes.STATUS_COMPLETED ?
-                                R.string.note_marked_complete : R.string.note_marked_incomplete,
-                        Toast.LENGTH_SHORT).show();
-                restartLoader();
-            }
-            return true;
-        } else {
-            return super.onContextItemSelected(item);
+    /**
+     * Asks for a category, and moves the notes to it with one update of the provider.
+     */
+    private void showMoveToCategoryDialog(final ActionMode mode, final long[] ids) {
+        final List<Category> categories = mCategoryDataSource.getAllCategories();
+        String[] names = new String[categories.size() + 1];
+        names[0] = getString(R.string.no_category);
+        for (int i = 0; i < categories.size(); i++) {
+            names[i + 1] = categories.get(i).getName();
         }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_move_to_category)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        long categoryId = which == 0 ? 0 : categories.get(which - 1).getId();
+                        ContentValues values = new ContentValues();
+                        values.put(Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+                        int rowsUpdated = getContentResolver().update(Notes.CONTENT_URI, values,
+                                notesWhere(ids), null);
+                        if (rowsUpdated > 0) {
+                            Toast.makeText(NotesList.this,
+                                    getString(R.string.notes_moved, rowsUpdated),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                        mode.finish();
+                    }
+                })
+                .show();
     }
 
     /**
@@ -884,12 +861,19 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
         StringBuilder selectionBuilder = new StringBuilder();
         List<String> selectionArgsList = new ArrayList<>();
 
-        // Apply search filter if exists
+        // Apply search filter if exists. The search goes through the provider's full-text index,
+        // and the todo/normal view the user is in is kept as a status condition.
         if (!filter.isEmpty()) {
-            selectionBuilder.append("(").append(Notes.COLUMN_NAME_TITLE).append(" LIKE ? OR ")
-                    .append(Notes.COLUMN_NAME_NOTE).append(" LIKE ?)");
-            selectionArgsList.add("%" + filter + "%");
-            selectionArgsList.add("%" + filter + "%");
+            if (uri.equals(Uri.withAppendedPath(Notes.CONTENT_URI, "todo"))) {
+                selectionBuilder.append(Notes.COLUMN_NAME_STATUS).append(" = ?");
+                selectionArgsList.add(String.valueOf(Notes.STATUS_COMPLETED));
+            } else if (uri.equals(Uri.withAppendedPath(Notes.CONTENT_URI, "normal"))) {
+                selectionBuilder.append(Notes.COLUMN_NAME_STATUS).append(" = ?");
+                selectionArgsList.add(String.valueOf(Notes.STATUS_PENDING));
+            }
+            uri = Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(Notes.QUERY_PARAMETER_SEARCH, filter)
+                    .build();
         }
 
         // Apply category filter if exists
@@ -959,8 +943,6 @@ public class NotesList extends AppCompatActivity implements LoaderManager.Loader
     @Override
     protected void onResume() {
         super.onResume();
-        // Refresh category cache when resuming
-        initializeCategoryCache();
         restartLoader();
     }
 }
\ No newline at end of file
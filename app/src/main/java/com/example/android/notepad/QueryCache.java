@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.LruCache;
+
+/**
+ * Keeps the results of the provider's recent queries, so that a screen that queries the same
+ * data again, after a rotation or when it returns to the front, is answered without running
+ * the query. Each result is kept in the CursorWindow that the query filled, which every cursor
+ * returned for it shares, so keeping a result copies nothing.
+ *
+ * The results are tagged with the provider's generation, which counts its committed changes.
+ * A query made in a later generation than the cached results discards them all; a result
+ * that does not fit in the query's first window is not kept.
+ */
+class QueryCache {
+
+    /**
+     * The number of bytes of results that are kept, as estimated by {@link #sizeOf}
+     */
+    static final int MAX_SIZE = 2 * 1024 * 1024;
+
+    // The bytes a window takes for each field, besides the field's value
+    private static final int FIELD_SIZE = 16;
+
+    private static class Entry {
+        final String[] mColumns;
+        final CursorWindow mWindow;
+        final int mSize;
+
+        Entry(String[] columns, CursorWindow window) {
+            mColumns = columns;
+            mWindow = window;
+            mSize = sizeOf(window, columns.length);
+        }
+    }
+
+    // The cached results, by key. Each holds a reference to its window, which is released
+    // when the result is discarded. Guarded by this, with the generation and counts.
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.mSize;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+            oldValue.mWindow.close();
+        }
+    };
+
+    // The generation of the cached results
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    // Set when the cache can't tell whether its results are current
+    private boolean mDisabled;
+
+    /**
+     * Returns the key of a query, from the arguments of
+     * {@link android.content.ContentResolver#query}.
+     */
+    static String key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString());
+        append(key, projection);
+        append(key, selection);
+        append(key, selectionArgs);
+        append(key, sortOrder);
+        return key.toString();
+    }
+
+    // Each value is prefixed with its length, so that different arguments never make the
+    // same key, and a null value is left empty.
+    private static void append(StringBuilder key, String value) {
+        key.append('|');
+        if (value != null) {
+            key.append(value.length()).append(':').append(value);
+        }
+    }
+
+    private static void append(StringBuilder key, String[] values) {
+        key.append('|');
+        if (values != null) {
+            key.append(values.length);
+            for (String value : values) {
+                append(key, value);
+            }
+        }
+    }
+
+    /**
+     * Returns a cursor on the cached result of a query, or null if there is none. A query made
+     * before the generation of the cached results is never answered from them, and does not
+     * discard them.
+     *
+     * @param generation The provider's generation when the query was made.
+     */
+    synchronized Cursor get(String key, long generation) {
+        if (mDisabled) {
+            return null;
+        }
+        if (generation < mGeneration) {
+            mMisses++;
+            return null;
+        }
+        if (generation > mGeneration) {
+            mEntries.evictAll();
+            mGeneration = generation;
+        }
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        entry.mWindow.acquireReference();
+        return new WindowCursor(entry.mColumns, entry.mWindow);
+    }
+
+    /**
+     * Caches the result of a query, unless the data changed while it ran, or the result does
+     * not fit in the first window that the query filled.
+     *
+     * @param generation The provider's generation read before the query ran.
+     * @param c The result, which is closed if it is cached.
+     * @return A cursor on the result, which is c if the result was not cached.
+     */
+    Cursor put(String key, long generation, Cursor c) {
+        if (!(c instanceof AbstractWindowedCursor)) {
+            return c;
+        }
+
+        // Counting the rows fills the cursor's first window
+        int count = c.getCount();
+        CursorWindow window = ((AbstractWindowedCursor) c).getWindow();
+        if (window == null || window.getStartPosition() != 0 || window.getNumRows() < count) {
+            return c;
+        }
+
+        String[] columns = c.getColumnNames();
+        Entry entry = new Entry(columns, window);
+        synchronized (this) {
+            if (mDisabled || generation < mGeneration) {
+                return c;
+            }
+            if (generation > mGeneration) {
+                mEntries.evictAll();
+                mGeneration = generation;
+            }
+            window.acquireReference();
+            mEntries.put(key, entry);
+        }
+
+        // The returned cursor takes a reference in place of c's, which closing c releases
+        window.acquireReference();
+        c.close();
+        return new WindowCursor(columns, window);
+    }
+
+    // Estimates the bytes that the rows of a window take: the value of each field, with
+    // strings counted in UTF-16, and the field itself.
+    private static int sizeOf(CursorWindow window, int columns) {
+        CharArrayBuffer buffer = new CharArrayBuffer(0);
+        int size = 0;
+        int end = window.getStartPosition() + window.getNumRows();
+        for (int row = window.getStartPosition(); row < end; row++) {
+            for (int column = 0; column < columns; column++) {
+                size += FIELD_SIZE;
+                switch (window.getType(row, column)) {
+                    case Cursor.FIELD_TYPE_STRING:
+                        window.copyStringToBuffer(row, column, buffer);
+                        size += buffer.sizeCopied * 2;
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        size += window.getBlob(row, column).length;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        size += 8;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Discards the cached results and stops caching, for a provider whose changes can't be
+     * tracked by generation.
+     */
+    synchronized void disable() {
+        mDisabled = true;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Returns the cache's statistics, with the keys of {@link NotePad.QueryCacheStats}.
+     */
+    synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong(NotePad.QueryCacheStats.KEY_HITS, mHits);
+        stats.putLong(NotePad.QueryCacheStats.KEY_MISSES, mMisses);
+        stats.putInt(NotePad.QueryCacheStats.KEY_SIZE, mEntries.snapshot().size());
+        return stats;
+    }
+}
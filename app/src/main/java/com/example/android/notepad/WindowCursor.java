@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CursorWindow;
+
+/**
+ * A cursor over the rows of a result, which are all in one window. The cursor takes over the
+ * caller's reference to the window, and releases it when it is closed.
+ */
+class WindowCursor extends AbstractWindowedCursor {
+    private final String[] mColumns;
+
+    WindowCursor(String[] columns, CursorWindow window) {
+        mColumns = columns;
+        setWindow(window);
+    }
+
+    @Override
+    public int getCount() {
+        return mWindow.getNumRows();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+}